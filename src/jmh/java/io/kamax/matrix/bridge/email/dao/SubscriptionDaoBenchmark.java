@@ -0,0 +1,155 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.dao;
+
+import io.kamax.matrix.bridge.email.config.dao.SubscriptionLogConfig;
+import io.kamax.matrix.bridge.email.config.dao.SubscriptionSqliteConfig;
+import io.kamax.matrix.bridge.email.dao.log.SubscriptionLog;
+import io.kamax.matrix.bridge.email.dao.sqlite.SubscriptionSqlite;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares subscription storages: throughput of creating then deleting subscriptions from concurrent threads, and
+ * time to open a storage and list all its subscriptions, as done at startup.
+ */
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SubscriptionDaoBenchmark {
+
+    private static _SubscriptionDao open(String backend, File dir) throws Exception {
+        _SubscriptionDao store;
+        if ("log".equals(backend)) {
+            SubscriptionLogConfig cfg = new SubscriptionLogConfig();
+            cfg.setLocation(new File(dir, "as-subscriptions.log").getAbsolutePath());
+            cfg.afterPropertiesSet();
+            store = new SubscriptionLog(cfg);
+        } else {
+            SubscriptionSqliteConfig cfg = new SubscriptionSqliteConfig();
+            cfg.setLocation(new File(dir, "as-subscriptions.db").getAbsolutePath());
+            cfg.afterPropertiesSet();
+            store = new SubscriptionSqlite(cfg);
+        }
+
+        ((InitializingBean) store).afterPropertiesSet();
+        return store;
+    }
+
+    private static void close(_SubscriptionDao store) throws Exception {
+        ((DisposableBean) store).destroy();
+    }
+
+    private static BridgeSubscriptionDao build() {
+        String id = UUID.randomUUID().toString();
+
+        BridgeSubscriptionDao dao = new BridgeSubscriptionDao();
+        dao.setSubId(id);
+        dao.setSourceMxId("@john:example.org");
+        dao.setTimestamp(System.currentTimeMillis());
+        dao.setEmail("john.doe@example.org");
+        dao.setThreadId(id.replace("-", ""));
+        dao.setMxId("@_email_john.doe=40example.org:example.org");
+        dao.setRoomId("!room:example.org");
+        return dao;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Opened {
+
+        @Param({"sqlite", "log"})
+        private String backend;
+
+        private File dir;
+        private _SubscriptionDao store;
+
+        @Setup
+        public void setup() throws Exception {
+            dir = Files.createTempDirectory("as-subscriptions-").toFile();
+            store = open(backend, dir);
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            close(store);
+            FileUtils.deleteDirectory(dir);
+        }
+
+    }
+
+    @State(Scope.Benchmark)
+    public static class Populated {
+
+        @Param({"sqlite", "log"})
+        private String backend;
+
+        @Param({"10000"})
+        private int count;
+
+        private File dir;
+
+        @Setup
+        public void setup() throws Exception {
+            dir = Files.createTempDirectory("as-subscriptions-").toFile();
+            _SubscriptionDao store = open(backend, dir);
+            for (int i = 0; i < count; i++) {
+                store.store(build());
+            }
+            close(store);
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            FileUtils.deleteDirectory(dir);
+        }
+
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(4)
+    public void createDelete(Opened state) {
+        BridgeSubscriptionDao dao = build();
+        state.store.store(dao);
+        state.store.delete(dao.getSubId());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int openAndList(Populated state) throws Exception {
+        _SubscriptionDao store = open(state.backend, state.dir);
+        try {
+            return store.list().size();
+        } finally {
+            close(store);
+        }
+    }
+
+}
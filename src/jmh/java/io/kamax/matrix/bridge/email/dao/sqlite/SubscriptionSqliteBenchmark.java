@@ -0,0 +1,89 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.dao.sqlite;
+
+import io.kamax.matrix.bridge.email.config.dao.SubscriptionSqliteConfig;
+import io.kamax.matrix.bridge.email.dao.BridgeSubscriptionDao;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of creating then deleting subscriptions from concurrent threads, with and without write-ahead logging.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Threads(4)
+@Fork(1)
+public class SubscriptionSqliteBenchmark {
+
+    @Param({"true", "false"})
+    private boolean wal;
+
+    private File dbFile;
+    private SubscriptionSqlite store;
+
+    @Setup
+    public void setup() throws Exception {
+        dbFile = File.createTempFile("as-subscriptions-", ".db");
+
+        SubscriptionSqliteConfig cfg = new SubscriptionSqliteConfig();
+        cfg.setLocation(dbFile.getAbsolutePath());
+        cfg.setWal(wal);
+        cfg.afterPropertiesSet();
+
+        store = new SubscriptionSqlite(cfg);
+        store.afterPropertiesSet();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        store.destroy();
+        for (String suffix : new String[]{"", "-wal", "-shm"}) {
+            File file = new File(dbFile.getPath() + suffix);
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Unable to delete " + file);
+            }
+        }
+    }
+
+    @Benchmark
+    public void createDelete() {
+        BridgeSubscriptionDao dao = new BridgeSubscriptionDao();
+        dao.setSubId(UUID.randomUUID().toString());
+        dao.setSourceMxId("@john:example.org");
+        dao.setTimestamp(System.currentTimeMillis());
+        dao.setEmail("john.doe@example.org");
+        dao.setThreadId(UUID.randomUUID().toString());
+        dao.setMxId("@_email_john.doe=40example.org:example.org");
+        dao.setRoomId("!room:example.org");
+
+        store.store(dao);
+        store.delete(dao.getSubId());
+    }
+
+}
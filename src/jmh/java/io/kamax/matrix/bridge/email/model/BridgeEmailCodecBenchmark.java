@@ -0,0 +1,131 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.model;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Cost of encoding and decoding a typical address, against the previous regex based codec.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BridgeEmailCodecBenchmark {
+
+    @Param({"john.doe@example.org", "jöhn+doe@exämple.org"})
+    private String email;
+
+    private String encoded;
+    private BridgeEmailCodec codec;
+    private RegexCodec regexCodec;
+
+    @Setup
+    public void setup() {
+        codec = new BridgeEmailCodec();
+        regexCodec = new RegexCodec();
+        encoded = codec.encode(email);
+    }
+
+    @Benchmark
+    public String encodeTable() {
+        return codec.encode(email);
+    }
+
+    @Benchmark
+    public String encodeRegex() {
+        return regexCodec.encode(email);
+    }
+
+    @Benchmark
+    public String decodeTable() {
+        return codec.decode(encoded);
+    }
+
+    @Benchmark
+    public String decodeRegex() {
+        return regexCodec.decode(encoded);
+    }
+
+    // Previous implementation, kept as the baseline
+    private static class RegexCodec {
+
+        private final Pattern charsToReplacePattern = Pattern.compile("[^0-9a-z-._]+");
+        private final Pattern decodePattern = Pattern.compile("(=[0-9a-f]{2})+");
+
+        String decode(String valueEncoded) {
+            StringBuilder builder = new StringBuilder();
+
+            Matcher m = decodePattern.matcher(valueEncoded);
+            int prevEnd = 0;
+            while (m.find()) {
+                try {
+                    int start = m.start();
+                    int end = m.end();
+                    String sub = valueEncoded.substring(start, end).replaceAll("=", "");
+                    String decoded = new String(Hex.decodeHex(sub.toCharArray()), StandardCharsets.UTF_8);
+                    builder.append(valueEncoded.substring(prevEnd, start));
+                    builder.append(decoded);
+                    prevEnd = end - 1;
+                } catch (DecoderException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            prevEnd++;
+            if (prevEnd < valueEncoded.length()) {
+                builder.append(valueEncoded.substring(prevEnd, valueEncoded.length()));
+            }
+
+            return builder.length() == 0 ? valueEncoded : builder.toString();
+        }
+
+        String encode(String value) {
+            value = value.toLowerCase();
+
+            StringBuilder builder = new StringBuilder();
+            for (Character c : value.toCharArray()) {
+                String s = c.toString();
+                Matcher lp = charsToReplacePattern.matcher(s);
+                if (!lp.find()) {
+                    builder.append(s);
+                } else {
+                    for (byte b : c.toString().getBytes(StandardCharsets.UTF_8)) {
+                        builder.append("=");
+                        builder.append(Hex.encodeHexString(new byte[]{b}));
+                    }
+                }
+            }
+
+            return builder.toString();
+        }
+
+    }
+
+}
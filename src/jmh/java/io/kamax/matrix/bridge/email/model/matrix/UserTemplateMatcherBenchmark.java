@@ -0,0 +1,96 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.model.matrix;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Cost of finding the bridged users among the members of a 500 members room, one tenth of them being bridged.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UserTemplateMatcherBenchmark {
+
+    private List<String> templates;
+    private List<Pattern> patterns;
+    private List<UserTemplateMatcher> matchers;
+    private List<String> members;
+
+    @Setup
+    public void setup() {
+        templates = new ArrayList<>();
+        templates.add("email_%EMAIL%");
+        templates.add("mail-%EMAIL%-bridge");
+
+        patterns = new ArrayList<>();
+        matchers = new ArrayList<>();
+        for (String template : templates) {
+            patterns.add(Pattern.compile(template.replace("%EMAIL%", "(?<email>.*)")));
+            matchers.add(new UserTemplateMatcher(template));
+        }
+
+        members = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            if (i % 10 == 0) {
+                members.add("email_john.doe" + i + "=40example.org");
+            } else {
+                members.add("user" + i);
+            }
+        }
+    }
+
+    @Benchmark
+    public void regex(Blackhole bh) {
+        for (String member : members) {
+            for (Pattern p : patterns) {
+                Matcher m = p.matcher(member);
+                if (m.matches()) {
+                    bh.consume(m.group("email"));
+                    break;
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void prefixSuffix(Blackhole bh) {
+        for (String member : members) {
+            for (UserTemplateMatcher m : matchers) {
+                if (m.match(member).isPresent()) {
+                    bh.consume(m);
+                    break;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.config.bridge;
+
+import io.kamax.matrix.bridge.email.exception.InvalidConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties("bridge.fanout")
+public class BridgeFanOutConfig implements InitializingBean {
+
+    private Logger log = LoggerFactory.getLogger(BridgeFanOutConfig.class);
+
+    private int threads = 8;
+    private int queue = 1000;
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getQueue() {
+        return queue;
+    }
+
+    public void setQueue(int queue) {
+        this.queue = queue;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (threads < 1) {
+            throw new InvalidConfigurationException("Bridge fan-out must have at least one thread");
+        }
+
+        if (queue < 1) {
+            throw new InvalidConfigurationException("Bridge fan-out queue must have a positive size");
+        }
+
+        log.info("Fan-out: {} thread(s), queue of {}", threads, queue);
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.config.dao;
+
+import io.kamax.matrix.bridge.email.exception.InvalidConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties("subscription.storage.log")
+public class SubscriptionLogConfig implements InitializingBean {
+
+    private Logger log = LoggerFactory.getLogger(SubscriptionLogConfig.class);
+
+    private String location;
+    private int growth = 8 * 1024 * 1024;
+    private boolean sync = true;
+    private double compactRatio = 0.5;
+    private long compactInterval = 600000;
+
+    public String getLocation() {
+        return location;
+    }
+
+    public void setLocation(String location) {
+        this.location = location;
+    }
+
+    public int getGrowth() {
+        return growth;
+    }
+
+    public void setGrowth(int growth) {
+        this.growth = growth;
+    }
+
+    public boolean isSync() {
+        return sync;
+    }
+
+    public void setSync(boolean sync) {
+        this.sync = sync;
+    }
+
+    public double getCompactRatio() {
+        return compactRatio;
+    }
+
+    public void setCompactRatio(double compactRatio) {
+        this.compactRatio = compactRatio;
+    }
+
+    public long getCompactInterval() {
+        return compactInterval;
+    }
+
+    public void setCompactInterval(long compactInterval) {
+        this.compactInterval = compactInterval;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (growth < 4096) {
+            throw new InvalidConfigurationException("Subscription log growth must be at least 4096 bytes");
+        }
+
+        if (compactRatio <= 0 || compactRatio >= 1) {
+            throw new InvalidConfigurationException("Subscription log compaction ratio must be between 0 and 1, excluded");
+        }
+
+        if (compactInterval < 1) {
+            throw new InvalidConfigurationException("Subscription log compaction interval must be positive");
+        }
+
+        log.info("Subscription log location: {}", location);
+        log.info("Subscription log growth: {}", growth);
+        log.info("Subscription log sync: {}", sync);
+        log.info("Subscription log compaction ratio: {}", compactRatio);
+        log.info("Subscription log compaction interval: {}", compactInterval);
+    }
+
+}
@@ -20,14 +20,23 @@
 
 package io.kamax.matrix.bridge.email.config.dao;
 
+import io.kamax.matrix.bridge.email.exception.InvalidConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
 @ConfigurationProperties("subscription.storage.sqlite")
-public class SubscriptionSqliteConfig {
+public class SubscriptionSqliteConfig implements InitializingBean {
+
+    private Logger log = LoggerFactory.getLogger(SubscriptionSqliteConfig.class);
 
     private String location;
+    private boolean wal = true;
+    private int readers = 2;
+    private int batch = 100;
 
     public String getLocation() {
         return location;
@@ -37,4 +46,44 @@ public class SubscriptionSqliteConfig {
         this.location = location;
     }
 
+    public boolean isWal() {
+        return wal;
+    }
+
+    public void setWal(boolean wal) {
+        this.wal = wal;
+    }
+
+    public int getReaders() {
+        return readers;
+    }
+
+    public void setReaders(int readers) {
+        this.readers = readers;
+    }
+
+    public int getBatch() {
+        return batch;
+    }
+
+    public void setBatch(int batch) {
+        this.batch = batch;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (readers < 1) {
+            throw new InvalidConfigurationException("SQLite number of read connections must be at least 1");
+        }
+
+        if (batch < 1) {
+            throw new InvalidConfigurationException("SQLite write batch size must be at least 1");
+        }
+
+        log.info("SQLite location: {}", location);
+        log.info("SQLite WAL journal: {}", wal);
+        log.info("SQLite read connections: {}", readers);
+        log.info("SQLite write batch size: {}", batch);
+    }
+
 }
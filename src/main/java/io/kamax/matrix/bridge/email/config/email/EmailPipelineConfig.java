@@ -0,0 +1,87 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.config.email;
+
+import io.kamax.matrix.bridge.email.exception.InvalidConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties("email.receiver.pipeline")
+public class EmailPipelineConfig implements InitializingBean {
+
+    private Logger log = LoggerFactory.getLogger(EmailPipelineConfig.class);
+
+    private int parseThreads = 2;
+    private int parseQueue = 100;
+    private int deliveryThreads = 4;
+    private int deliveryQueue = 100;
+
+    public int getParseThreads() {
+        return parseThreads;
+    }
+
+    public void setParseThreads(int parseThreads) {
+        this.parseThreads = parseThreads;
+    }
+
+    public int getParseQueue() {
+        return parseQueue;
+    }
+
+    public void setParseQueue(int parseQueue) {
+        this.parseQueue = parseQueue;
+    }
+
+    public int getDeliveryThreads() {
+        return deliveryThreads;
+    }
+
+    public void setDeliveryThreads(int deliveryThreads) {
+        this.deliveryThreads = deliveryThreads;
+    }
+
+    public int getDeliveryQueue() {
+        return deliveryQueue;
+    }
+
+    public void setDeliveryQueue(int deliveryQueue) {
+        this.deliveryQueue = deliveryQueue;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (parseThreads < 1 || deliveryThreads < 1) {
+            throw new InvalidConfigurationException("E-mail receiver pipeline must have at least one thread per stage");
+        }
+
+        if (parseQueue < 1 || deliveryQueue < 1) {
+            throw new InvalidConfigurationException("E-mail receiver pipeline queues must have a positive size");
+        }
+
+        log.info("Parse stage: {} thread(s), queue of {}", parseThreads, parseQueue);
+        log.info("Delivery stage: {} thread(s), queue of {}", deliveryThreads, deliveryQueue);
+    }
+
+}
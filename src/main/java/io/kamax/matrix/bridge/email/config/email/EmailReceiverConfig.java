@@ -20,12 +20,22 @@
 
 package io.kamax.matrix.bridge.email.config.email;
 
+import io.kamax.matrix.bridge.email.exception.InvalidConfigurationException;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
 @ConfigurationProperties("email.receiver")
-public class EmailReceiverConfig {
+public class EmailReceiverConfig implements InitializingBean {
+
+    public static final String MODE_IDLE = "idle";
+    public static final String MODE_POLL = "poll";
+
+    private Logger log = LoggerFactory.getLogger(EmailReceiverConfig.class);
 
     private String type;
     private String host;
@@ -33,6 +43,10 @@ public class EmailReceiverConfig {
     private String login;
     private String password;
     private String email;
+    private String mode = MODE_IDLE;
+    private long pollInterval = 1000;
+    private long pollIntervalMax = 30000;
+    private long idleRefresh = 300000;
 
     public String getType() {
         return type;
@@ -82,4 +96,63 @@ public class EmailReceiverConfig {
         this.email = email;
     }
 
+    public String getMode() {
+        return mode;
+    }
+
+    public void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    public boolean isIdle() {
+        return MODE_IDLE.equalsIgnoreCase(mode);
+    }
+
+    public long getPollInterval() {
+        return pollInterval;
+    }
+
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    public long getPollIntervalMax() {
+        return pollIntervalMax;
+    }
+
+    public void setPollIntervalMax(long pollIntervalMax) {
+        this.pollIntervalMax = pollIntervalMax;
+    }
+
+    public long getIdleRefresh() {
+        return idleRefresh;
+    }
+
+    public void setIdleRefresh(long idleRefresh) {
+        this.idleRefresh = idleRefresh;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!StringUtils.equalsIgnoreCase(MODE_IDLE, mode) && !StringUtils.equalsIgnoreCase(MODE_POLL, mode)) {
+            throw new InvalidConfigurationException("E-mail receiver mode must be either " + MODE_IDLE + " or " + MODE_POLL);
+        }
+
+        if (pollInterval < 1) {
+            throw new InvalidConfigurationException("E-mail receiver poll interval must be a positive value");
+        }
+
+        if (pollIntervalMax < pollInterval) {
+            throw new InvalidConfigurationException("E-mail receiver maximum poll interval cannot be lower than the poll interval");
+        }
+
+        if (idleRefresh < 1) {
+            throw new InvalidConfigurationException("E-mail receiver IDLE refresh interval must be a positive value");
+        }
+
+        log.info("Receiver mode: {}", mode);
+        log.info("Poll interval: {} - {} ms", pollInterval, pollIntervalMax);
+        log.info("IDLE refresh: {} ms", idleRefresh);
+    }
+
 }
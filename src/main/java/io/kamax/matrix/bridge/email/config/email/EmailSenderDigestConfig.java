@@ -0,0 +1,77 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.config.email;
+
+import io.kamax.matrix.bridge.email.exception.InvalidConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties("email.sender.digest")
+public class EmailSenderDigestConfig implements InitializingBean {
+
+    private Logger log = LoggerFactory.getLogger(EmailSenderDigestConfig.class);
+
+    private int window = 0;
+    private int max = 20;
+
+    public int getWindow() {
+        return window;
+    }
+
+    public void setWindow(int window) {
+        this.window = window;
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    public void setMax(int max) {
+        this.max = max;
+    }
+
+    public boolean isEnabled() {
+        return window > 0;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (window < 0) {
+            throw new InvalidConfigurationException("E-mail digest window cannot be negative");
+        }
+
+        if (max < 1) {
+            throw new InvalidConfigurationException("E-mail digest maximum number of messages must be at least 1");
+        }
+
+        if (!isEnabled()) {
+            log.info("E-mail digest: disabled");
+        } else {
+            log.info("E-mail digest window: {} s", window);
+            log.info("E-mail digest max messages: {}", max);
+        }
+    }
+
+}
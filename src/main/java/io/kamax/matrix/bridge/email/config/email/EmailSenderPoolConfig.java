@@ -0,0 +1,93 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.config.email;
+
+import io.kamax.matrix.bridge.email.exception.InvalidConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties("email.sender.pool")
+public class EmailSenderPoolConfig implements InitializingBean {
+
+    private Logger log = LoggerFactory.getLogger(EmailSenderPoolConfig.class);
+
+    private int size = 4;
+    private int maxMessages = 100;
+    private long idleTimeout = 60000;
+    private long validateAfter = 5000;
+
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    public void setMaxMessages(int maxMessages) {
+        this.maxMessages = maxMessages;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public long getValidateAfter() {
+        return validateAfter;
+    }
+
+    public void setValidateAfter(long validateAfter) {
+        this.validateAfter = validateAfter;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (size < 1) {
+            throw new InvalidConfigurationException("SMTP connection pool size must be at least 1");
+        }
+
+        if (maxMessages < 1) {
+            throw new InvalidConfigurationException("SMTP connection pool maximum messages per connection must be at least 1");
+        }
+
+        if (idleTimeout < 1) {
+            throw new InvalidConfigurationException("SMTP connection pool idle timeout must be a positive value");
+        }
+
+        log.info("SMTP pool size: {}", size);
+        log.info("SMTP pool max messages per connection: {}", maxMessages);
+        log.info("SMTP pool idle timeout: {} ms", idleTimeout);
+        log.info("SMTP pool validate after: {} ms", validateAfter);
+    }
+
+}
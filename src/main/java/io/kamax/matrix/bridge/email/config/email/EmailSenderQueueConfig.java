@@ -0,0 +1,119 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.config.email;
+
+import io.kamax.matrix.bridge.email.exception.InvalidConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties("email.sender.queue")
+public class EmailSenderQueueConfig implements InitializingBean {
+
+    private Logger log = LoggerFactory.getLogger(EmailSenderQueueConfig.class);
+
+    private int threads = 4;
+    private int domainConcurrency = 2;
+    private int maxAttempts = 10;
+    private long retryDelay = 30000;
+    private long retryDelayMax = 3600000;
+    private long pollInterval = 1000;
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getDomainConcurrency() {
+        return domainConcurrency;
+    }
+
+    public void setDomainConcurrency(int domainConcurrency) {
+        this.domainConcurrency = domainConcurrency;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    public long getRetryDelayMax() {
+        return retryDelayMax;
+    }
+
+    public void setRetryDelayMax(long retryDelayMax) {
+        this.retryDelayMax = retryDelayMax;
+    }
+
+    public long getPollInterval() {
+        return pollInterval;
+    }
+
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (threads < 1) {
+            throw new InvalidConfigurationException("E-mail sender queue must have at least one thread");
+        }
+
+        if (domainConcurrency < 1) {
+            throw new InvalidConfigurationException("E-mail sender queue domain concurrency must be at least 1");
+        }
+
+        if (maxAttempts < 1) {
+            throw new InvalidConfigurationException("E-mail sender queue must allow at least one attempt");
+        }
+
+        if (retryDelay < 1 || retryDelayMax < retryDelay) {
+            throw new InvalidConfigurationException("E-mail sender queue retry delays must be positive, with the maximum not lower than the initial delay");
+        }
+
+        if (pollInterval < 1) {
+            throw new InvalidConfigurationException("E-mail sender queue poll interval must be a positive value");
+        }
+
+        log.info("Sender threads: {}", threads);
+        log.info("Sender concurrency per domain: {}", domainConcurrency);
+        log.info("Sender max attempts: {}", maxAttempts);
+        log.info("Sender retry delay: {} - {} ms", retryDelay, retryDelayMax);
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.config.email;
+
+import io.kamax.matrix.bridge.email.exception.InvalidConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties("email.sender.render")
+public class EmailSenderRenderConfig implements InitializingBean {
+
+    private Logger log = LoggerFactory.getLogger(EmailSenderRenderConfig.class);
+
+    private int cacheSize = 1000;
+    private long ttl = 60000;
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (cacheSize < 1) {
+            throw new InvalidConfigurationException("E-mail render cache size must be at least 1");
+        }
+
+        if (ttl < 1) {
+            throw new InvalidConfigurationException("E-mail render cache TTL must be at least 1 ms");
+        }
+
+        log.info("E-mail render cache size: {}", cacheSize);
+        log.info("E-mail render cache TTL: {} ms", ttl);
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.config.matrix;
+
+import io.kamax.matrix.bridge.email.exception.InvalidConfigurationException;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties("matrix.avatar")
+public class MatrixAvatarConfig implements InitializingBean {
+
+    private Logger log = LoggerFactory.getLogger(MatrixAvatarConfig.class);
+
+    private String location = "avatars";
+    private int cacheSize = 1000;
+    private long ttl = 3600000;
+
+    public String getLocation() {
+        return location;
+    }
+
+    public void setLocation(String location) {
+        this.location = location;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (StringUtils.isBlank(location)) {
+            throw new InvalidConfigurationException("Avatar cache location cannot be empty");
+        }
+
+        if (cacheSize < 1) {
+            throw new InvalidConfigurationException("Avatar cache size must be at least 1");
+        }
+
+        if (ttl < 1) {
+            throw new InvalidConfigurationException("Avatar TTL must be a positive value");
+        }
+
+        log.info("Avatar cache location: {}", location);
+        log.info("Avatar cache size: {}", cacheSize);
+        log.info("Avatar TTL: {} ms", ttl);
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.config.matrix;
+
+import io.kamax.matrix.bridge.email.exception.InvalidConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties("matrix.cache")
+public class MatrixCacheConfig implements InitializingBean {
+
+    private Logger log = LoggerFactory.getLogger(MatrixCacheConfig.class);
+
+    private int rooms = 1000;
+    private int users = 10000;
+    private long ttl = 600000;
+    private int clients = 10000;
+    private long clientIdle = 3600000;
+
+    public int getRooms() {
+        return rooms;
+    }
+
+    public void setRooms(int rooms) {
+        this.rooms = rooms;
+    }
+
+    public int getUsers() {
+        return users;
+    }
+
+    public void setUsers(int users) {
+        this.users = users;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    public int getClients() {
+        return clients;
+    }
+
+    public void setClients(int clients) {
+        this.clients = clients;
+    }
+
+    public long getClientIdle() {
+        return clientIdle;
+    }
+
+    public void setClientIdle(long clientIdle) {
+        this.clientIdle = clientIdle;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (rooms < 1 || users < 1 || clients < 1) {
+            throw new InvalidConfigurationException("Matrix cache sizes must be at least 1");
+        }
+
+        if (ttl < 0 || clientIdle < 0) {
+            throw new InvalidConfigurationException("Matrix cache TTL cannot be negative");
+        }
+
+        log.info("Matrix cache: {} room(s), {} user(s), TTL of {} ms", rooms, users, ttl);
+        log.info("Matrix virtual user clients: {}, evicted after {} ms idle", clients, clientIdle);
+    }
+
+}
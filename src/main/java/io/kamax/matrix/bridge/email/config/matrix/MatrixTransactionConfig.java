@@ -0,0 +1,158 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.config.matrix;
+
+import io.kamax.matrix.bridge.email.exception.InvalidConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties("matrix.transaction")
+public class MatrixTransactionConfig implements InitializingBean {
+
+    private Logger log = LoggerFactory.getLogger(MatrixTransactionConfig.class);
+
+    private boolean async = false;
+    private boolean persist = true;
+    private int cacheSize = 10000;
+    private int maxAttempts = 10;
+    private int blockingAttempts = 3;
+    private long retryDelay = 30000;
+    private long retryDelayMax = 3600000;
+    private long pollInterval = 1000;
+    private long retention = 604800000;
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    public boolean isPersist() {
+        return persist;
+    }
+
+    public void setPersist(boolean persist) {
+        this.persist = persist;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public int getBlockingAttempts() {
+        return blockingAttempts;
+    }
+
+    public void setBlockingAttempts(int blockingAttempts) {
+        this.blockingAttempts = blockingAttempts;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    public long getRetryDelayMax() {
+        return retryDelayMax;
+    }
+
+    public void setRetryDelayMax(long retryDelayMax) {
+        this.retryDelayMax = retryDelayMax;
+    }
+
+    public long getPollInterval() {
+        return pollInterval;
+    }
+
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    public long getRetention() {
+        return retention;
+    }
+
+    public void setRetention(long retention) {
+        this.retention = retention;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (async && !persist) {
+            throw new InvalidConfigurationException("Transactions must be persisted to be processed asynchronously");
+        }
+
+        if (cacheSize < 1) {
+            throw new InvalidConfigurationException("Transaction ID cache size must be at least 1");
+        }
+
+        if (maxAttempts < 1) {
+            throw new InvalidConfigurationException("Transaction maximum attempts must be at least 1");
+        }
+
+        if (blockingAttempts < 1) {
+            throw new InvalidConfigurationException("Transaction blocking attempts must be at least 1");
+        }
+
+        if (retryDelay < 1 || retryDelayMax < retryDelay) {
+            throw new InvalidConfigurationException("Transaction retry delays must be positive, with the maximum not lower than the initial delay");
+        }
+
+        if (pollInterval < 1) {
+            throw new InvalidConfigurationException("Transaction poll interval must be a positive value");
+        }
+
+        if (retention < 1) {
+            throw new InvalidConfigurationException("Transaction retention must be a positive value");
+        }
+
+        log.info("Transactions acknowledged before processing: {}", async);
+        log.info("Transaction IDs persisted: {}", persist);
+        log.info("Transaction ID cache size: {}", cacheSize);
+        log.info("Transaction max attempts: {}", maxAttempts);
+        log.info("Transaction attempts holding back later ones: {}", blockingAttempts);
+        log.info("Transaction retry delay: {} - {} ms", retryDelay, retryDelayMax);
+        log.info("Transaction poll interval: {} ms", pollInterval);
+        log.info("Transaction retention: {} ms", retention);
+    }
+
+}
@@ -36,6 +36,7 @@ public class EmailNotificationConfig implements InitializingBean {
     private EmailTemplateConfig onCreate;
     private EmailTemplateConfig onDestroy;
     private EmailTemplateConfig onMessage;
+    private boolean watch = true;
 
     public EmailTemplateConfig getOnCreate() {
         return onCreate;
@@ -61,6 +62,14 @@ public class EmailNotificationConfig implements InitializingBean {
         this.onMessage = onMessage;
     }
 
+    public boolean isWatch() {
+        return watch;
+    }
+
+    public void setWatch(boolean watch) {
+        this.watch = watch;
+    }
+
     public EmailTemplateConfig get(SubscriptionEvents event) {
         switch (event) {
             case OnCreate:
@@ -76,6 +85,7 @@ public class EmailNotificationConfig implements InitializingBean {
 
     @Override
     public void afterPropertiesSet() throws Exception {
+        log.info("Watch template files: {}", isWatch());
         for (SubscriptionEvents eventId : SubscriptionEvents.values()) {
             log.info("Template for {}:", eventId);
             EmailTemplateConfig cfg = get(eventId);
@@ -0,0 +1,67 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.config.subscription;
+
+import io.kamax.matrix.bridge.email.exception.InvalidConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties("subscription.cache")
+public class SubscriptionCacheConfig implements InitializingBean {
+
+    private Logger log = LoggerFactory.getLogger(SubscriptionCacheConfig.class);
+
+    private boolean lazy = false;
+    private long idle = 3600000;
+
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    public long getIdle() {
+        return idle;
+    }
+
+    public void setIdle(long idle) {
+        this.idle = idle;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (idle < 1) {
+            throw new InvalidConfigurationException("Subscription idle time must be at least 1 ms");
+        }
+
+        log.info("Lazy subscription loading: {}", lazy);
+        if (lazy) {
+            log.info("Subscription idle time: {} ms", idle);
+        }
+    }
+
+}
@@ -20,19 +20,16 @@
 
 package io.kamax.matrix.bridge.email.controller;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import io.kamax.matrix.MatrixErrorInfo;
+import io.kamax.matrix.bridge.email.config.matrix.MatrixTransactionConfig;
 import io.kamax.matrix.bridge.email.exception.*;
+import io.kamax.matrix.bridge.email.model.matrix.MatrixTransactionParser;
 import io.kamax.matrix.bridge.email.model.matrix.MatrixTransactionPush;
 import io.kamax.matrix.bridge.email.model.matrix.RoomQuery;
 import io.kamax.matrix.bridge.email.model.matrix.UserQuery;
 import io.kamax.matrix.bridge.email.model.matrix._MatrixApplicationService;
-import io.kamax.matrix.event._MatrixEvent;
-import io.kamax.matrix.json.MatrixJsonEventFactory;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -41,8 +38,8 @@ import org.springframework.web.bind.annotation.*;
 
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 
 import static org.springframework.web.bind.annotation.RequestMethod.GET;
 import static org.springframework.web.bind.annotation.RequestMethod.PUT;
@@ -55,7 +52,11 @@ public class ApplicationServiceController {
     @Autowired
     private _MatrixApplicationService as;
 
-    private JsonParser jsonParser = new JsonParser();
+    @Autowired
+    private MatrixTransactionParser parser;
+
+    @Autowired
+    private MatrixTransactionConfig txnCfg;
 
     @ResponseStatus(value = HttpStatus.BAD_REQUEST)
     @ExceptionHandler({InvalidMatrixIdException.class, InvalidBodyContentException.class})
@@ -125,27 +126,23 @@ public class ApplicationServiceController {
             @PathVariable String txnId) throws IOException {
         log.info("Processing {}", request.getServletPath());
 
-        String json = IOUtils.toString(request.getInputStream(), request.getCharacterEncoding());
-        try {
-            JsonObject rootObj = jsonParser.parse(json).getAsJsonObject();
-            JsonArray eventsJson = rootObj.get("events").getAsJsonArray();
-
-            List<_MatrixEvent> events = new ArrayList<>();
-            for (JsonElement event : eventsJson) {
-                events.add(MatrixJsonEventFactory.get(event.getAsJsonObject()));
-            }
-
-            MatrixTransactionPush transaction = new MatrixTransactionPush();
-            transaction.setCredentials(accessToken);
-            transaction.setId(txnId);
-            transaction.setEvents(events);
+        String charset = StringUtils.defaultIfBlank(request.getCharacterEncoding(), StandardCharsets.UTF_8.name());
+
+        MatrixTransactionPush transaction = new MatrixTransactionPush();
+        transaction.setCredentials(accessToken);
+        transaction.setId(txnId);
+        if (txnCfg.isAsync()) {
+            // Stored as is and parsed when processed
+            transaction.setJson(IOUtils.toString(request.getInputStream(), charset));
+        } else {
+            // Parsing has side effects on caches and the homeserver, so it is left to after authentication
+            InputStreamReader body = new InputStreamReader(request.getInputStream(), charset);
+            transaction.setEvents(() -> parser.parse(body));
+        }
 
-            as.push(transaction);
+        as.push(transaction);
 
-            return EmptyJsonResponse.get();
-        } catch (IllegalStateException e) {
-            throw new InvalidBodyContentException(e);
-        }
+        return EmptyJsonResponse.get();
     }
 
 }
@@ -0,0 +1,66 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.dao;
+
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+@Component
+public interface _EmailSpoolDao {
+
+    /**
+     * Add an e-mail to the spool.
+     *
+     * @param dao The e-mail to add
+     * @return The ID assigned to the spooled e-mail
+     */
+    long store(EmailSpoolDao dao);
+
+    void update(EmailSpoolDao dao);
+
+    void delete(long id);
+
+    /**
+     * Take a queued e-mail for a delivery attempt, so it is not listed as due anymore.
+     *
+     * @param id The ID of the e-mail
+     * @return true if the e-mail was queued and is now taken, false otherwise
+     */
+    boolean claim(long id);
+
+    /**
+     * Put back in the queue e-mails taken for a delivery attempt that never completed, like when stopped.
+     *
+     * @return Number of e-mails put back in the queue
+     */
+    int release();
+
+    /**
+     * List queued e-mails which are due for a delivery attempt, oldest first.
+     *
+     * @param time  Current time, as epoch milliseconds
+     * @param limit Maximum number of e-mails to return
+     * @return The due e-mails
+     */
+    List<EmailSpoolDao> listDue(long time, int limit);
+
+}
@@ -0,0 +1,73 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.dao;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Optional;
+
+@Component
+public interface _MatrixTransactionDao {
+
+    /**
+     * Record a transaction, unless a transaction with the same ID is already known.
+     *
+     * @param dao The transaction to record
+     * @return true if the transaction was recorded, false if it was already known
+     */
+    boolean store(MatrixTransactionDao dao);
+
+    Optional<MatrixTransactionDao> get(String id);
+
+    /**
+     * Update the attempts, next attempt time, progress, processed and dead state of a transaction. The content and
+     * progress of processed transactions are discarded. The content of dead transactions is kept, so they can be inspected and replayed.
+     *
+     * @param dao The transaction to update
+     */
+    void update(MatrixTransactionDao dao);
+
+    /**
+     * Get the oldest transaction neither processed nor dead, which must be processed before any later one, unless
+     * it failed too many times to keep holding later ones back, in which case it is only returned once due.
+     *
+     * @param blockingAttempts Number of attempts after which a transaction no longer holds back later ones
+     * @param now              Epoch milliseconds, to know if a transaction that does not hold back later ones is due
+     * @return The next pending transaction, if any
+     */
+    Optional<MatrixTransactionDao> getNextPending(int blockingAttempts, long now);
+
+    /**
+     * Count transactions which processing was given up.
+     *
+     * @return Number of dead transactions
+     */
+    int countDead();
+
+    /**
+     * Delete processed transactions received before the given time.
+     *
+     * @param before Epoch milliseconds
+     * @return Number of deleted transactions
+     */
+    int purge(long before);
+
+}
@@ -23,6 +23,7 @@ package io.kamax.matrix.bridge.email.dao;
 import org.springframework.stereotype.Component;
 
 import java.util.List;
+import java.util.Optional;
 
 @Component
 public interface _SubscriptionDao {
@@ -31,6 +32,27 @@ public interface _SubscriptionDao {
 
     void delete(String id);
 
+    Optional<BridgeSubscriptionDao> get(String id);
+
+    Optional<BridgeSubscriptionDao> getWithThreadId(String threadId);
+
+    Optional<BridgeSubscriptionDao> getWithMatrixId(String mxId, String roomId);
+
+    List<BridgeSubscriptionDao> listForEmail(String email);
+
+    List<BridgeSubscriptionDao> listForMatrixId(String mxId);
+
+    List<BridgeSubscriptionDao> listForRoom(String roomId);
+
+    /**
+     * List subscriptions by ascending ID, one page at a time.
+     *
+     * @param afterId The last ID of the previous page, or <code>null</code> for the first page
+     * @param limit   The maximum number of subscriptions to return
+     * @return The subscriptions with an ID greater than <code>afterId</code>
+     */
+    List<BridgeSubscriptionDao> list(String afterId, int limit);
+
     List<BridgeSubscriptionDao> list();
 
 }
@@ -0,0 +1,539 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.dao.log;
+
+import io.kamax.matrix.bridge.email.config.dao.SubscriptionLogConfig;
+import io.kamax.matrix.bridge.email.dao.BridgeSubscriptionDao;
+import io.kamax.matrix.bridge.email.dao._SubscriptionDao;
+import io.kamax.matrix.bridge.email.exception.StorageException;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Subscriptions stored in an append-only log file, mapped in memory.
+ * <p>
+ * Each change is appended as a record: a type, the payload length, the payload and a CRC32 checksum. The type is
+ * written last, so a record cut short by a crash is never read, and reading stops at the first invalid record.
+ * The position of the current record of each subscription is kept in memory, along with indexes on the values
+ * that can be queried. Replaced and deleted records are removed by rewriting the file, once they take up enough
+ * of it.
+ * <p>
+ * Files are limited to 2 GiB, the maximum size of a single mapping.
+ */
+@Component
+@ConditionalOnProperty(prefix = "subscription.storage", name = "type", havingValue = "log")
+public class SubscriptionLog implements InitializingBean, DisposableBean, _SubscriptionDao {
+
+    private Logger log = LoggerFactory.getLogger(SubscriptionLog.class);
+
+    private static final int magic = 0x4d584553; // MXES
+    private static final int version = 1;
+    private static final int headerSize = 8;
+
+    private static final byte typeEnd = 0;
+    private static final byte typeStore = 1;
+    private static final byte typeDelete = 2;
+
+    // Type, payload length and checksum
+    private static final int recordOverhead = 9;
+
+    @Autowired
+    private SubscriptionLogConfig cfg;
+
+    private ReadWriteLock lock = new ReentrantReadWriteLock();
+    private Path path;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int end;
+    private int dead;
+
+    private NavigableMap<String, Integer> offsets = new TreeMap<>();
+    private Map<String, String> idsByThreadId = new HashMap<>();
+    private Map<String, Set<String>> idsByEmail = new HashMap<>();
+    private Map<String, Set<String>> idsByMxId = new HashMap<>();
+    private Map<String, Set<String>> idsByRoomId = new HashMap<>();
+
+    private ScheduledExecutorService compactor;
+
+    public SubscriptionLog() {
+        // used by Spring
+    }
+
+    public SubscriptionLog(SubscriptionLogConfig cfg) {
+        this.cfg = cfg;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        path = Paths.get(StringUtils.defaultIfBlank(cfg.getLocation(), "as-subscriptions.log")).toAbsolutePath();
+        log.info("Subscription log: {}", path);
+
+        if (!Files.exists(path)) {
+            log.info("Subscription log file does not exist, provisioning");
+        }
+
+        open();
+
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r);
+            t.setName("subscription-log-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        compactor.scheduleWithFixedDelay(this::compactIfNeeded, cfg.getCompactInterval(), cfg.getCompactInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (channel != null) {
+                buffer.force();
+                channel.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void map(int size) throws IOException {
+        long capacity = Math.min(Integer.MAX_VALUE, ((long) size / cfg.getGrowth() + 1) * cfg.getGrowth());
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() > Integer.MAX_VALUE) {
+            throw new StorageException("Subscription log " + path + " is bigger than 2 GiB");
+        }
+
+        map((int) channel.size());
+        if (buffer.getInt(0) == 0) {
+            buffer.putInt(0, magic);
+            buffer.putInt(4, version);
+            buffer.force();
+        } else if (buffer.getInt(0) != magic || buffer.getInt(4) != version) {
+            throw new StorageException(path + " is not a subscription log, or of an unsupported version");
+        }
+
+        end = headerSize;
+        dead = 0;
+        int count = 0;
+        while (isValid(end)) {
+            int size = recordSize(end);
+            if (buffer.get(end) == typeStore) {
+                index(decode(end), end);
+            } else {
+                unindex(decode(end).getSubId());
+                dead += size;
+            }
+
+            end += size;
+            count++;
+        }
+
+        // Left by a record cut short or corrupted, which must not be mistaken for a record later on
+        boolean corrupted = false;
+        for (int i = end; i < buffer.capacity(); i++) {
+            if (buffer.get(i) != typeEnd) {
+                buffer.put(i, typeEnd);
+                corrupted = true;
+            }
+        }
+        if (corrupted) {
+            log.warn("Subscription log is corrupted after offset {}, discarded the rest of the file", end);
+            buffer.force();
+        }
+
+        log.info("Read {} record(s) from subscription log, {} subscription(s)", count, offsets.size());
+    }
+
+    private int recordSize(int offset) {
+        return recordOverhead + buffer.getInt(offset + 1);
+    }
+
+    private int checksum(byte type, ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private boolean isValid(int offset) {
+        if (offset + recordOverhead > buffer.capacity()) {
+            return false;
+        }
+
+        byte type = buffer.get(offset);
+        if (type != typeStore && type != typeDelete) {
+            return false;
+        }
+
+        int length = buffer.getInt(offset + 1);
+        if (length < 0 || length > buffer.capacity() - offset - recordOverhead) {
+            return false;
+        }
+
+        ByteBuffer payload = buffer.duplicate();
+        payload.limit(offset + 5 + length);
+        payload.position(offset + 5);
+        return checksum(type, payload) == buffer.getInt(offset + 5 + length);
+    }
+
+    private void write(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private String readString(ByteBuffer data) {
+        int length = data.getInt();
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private BridgeSubscriptionDao decode(int offset) {
+        ByteBuffer data = buffer.duplicate();
+        data.position(offset + 5);
+
+        BridgeSubscriptionDao dao = new BridgeSubscriptionDao();
+        dao.setSubId(readString(data));
+        if (buffer.get(offset) == typeStore) {
+            dao.setSourceMxId(readString(data));
+            dao.setTimestamp(data.getLong());
+            dao.setEmail(readString(data));
+            dao.setThreadId(readString(data));
+            dao.setMxId(readString(data));
+            dao.setRoomId(readString(data));
+        }
+        return dao;
+    }
+
+    private byte[] encode(BridgeSubscriptionDao dao) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        write(out, dao.getSubId());
+        write(out, dao.getSourceMxId());
+        out.writeLong(dao.getTimestamp());
+        write(out, dao.getEmail());
+        write(out, dao.getThreadId());
+        write(out, dao.getMxId());
+        write(out, dao.getRoomId());
+        return bytes.toByteArray();
+    }
+
+    private byte[] encode(String id) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        write(new DataOutputStream(bytes), id);
+        return bytes.toByteArray();
+    }
+
+    private int append(byte type, byte[] payload) throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            throw new StorageException("Subscription storage is closed");
+        }
+
+        int size = recordOverhead + payload.length;
+        if ((long) end + size > Integer.MAX_VALUE) {
+            throw new StorageException("Subscription log " + path + " is full");
+        }
+
+        if (end + size > buffer.capacity()) {
+            map(end + size);
+        }
+
+        int offset = end;
+        buffer.putInt(offset + 1, payload.length);
+        ByteBuffer data = buffer.duplicate();
+        data.position(offset + 5);
+        data.put(payload);
+        buffer.putInt(offset + 5 + payload.length, checksum(type, ByteBuffer.wrap(payload)));
+
+        // Written last, so the record is not read if it was cut short by a crash
+        buffer.put(offset, type);
+
+        if (cfg.isSync()) {
+            buffer.force();
+        }
+
+        end += size;
+        return offset;
+    }
+
+    private void add(Map<String, Set<String>> index, String key, String id) {
+        index.computeIfAbsent(key, k -> new HashSet<>()).add(id);
+    }
+
+    private void remove(Map<String, Set<String>> index, String key, String id) {
+        Set<String> ids = index.get(key);
+        if (ids != null && ids.remove(id) && ids.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    private void index(BridgeSubscriptionDao dao, int offset) {
+        unindex(dao.getSubId());
+
+        offsets.put(dao.getSubId(), offset);
+        idsByThreadId.put(dao.getThreadId(), dao.getSubId());
+        add(idsByEmail, dao.getEmail(), dao.getSubId());
+        add(idsByMxId, dao.getMxId(), dao.getSubId());
+        add(idsByRoomId, dao.getRoomId(), dao.getSubId());
+    }
+
+    private void unindex(String id) {
+        Integer offset = offsets.remove(id);
+        if (offset == null) {
+            return;
+        }
+
+        BridgeSubscriptionDao dao = decode(offset);
+        idsByThreadId.remove(dao.getThreadId(), id);
+        remove(idsByEmail, dao.getEmail(), id);
+        remove(idsByMxId, dao.getMxId(), id);
+        remove(idsByRoomId, dao.getRoomId(), id);
+        dead += recordSize(offset);
+    }
+
+    @Override
+    public void store(BridgeSubscriptionDao dao) {
+        log.info("Storing subscription {} in log", dao.getSubId());
+
+        lock.writeLock().lock();
+        try {
+            index(dao, append(typeStore, encode(dao)));
+        } catch (IOException e) {
+            throw new StorageException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(String id) {
+        log.info("Deleting subscription {} from log", id);
+
+        lock.writeLock().lock();
+        try {
+            if (!offsets.containsKey(id)) {
+                return;
+            }
+
+            int offset = append(typeDelete, encode(id));
+            unindex(id);
+            dead += recordSize(offset);
+        } catch (IOException e) {
+            throw new StorageException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void compactIfNeeded() {
+        try {
+            lock.writeLock().lock();
+            try {
+                if (dead > 0 && dead >= cfg.getCompactRatio() * (end - headerSize)) {
+                    compact();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Error when compacting subscription log", e);
+        }
+    }
+
+    /**
+     * Rewrite the file with only the current record of each subscription. Must be called with the write lock held.
+     */
+    void compact() throws IOException {
+        log.info("Compacting subscription log: {} of {} bytes are no longer used", dead, end);
+
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        NavigableMap<String, Integer> newOffsets = new TreeMap<>();
+        int newEnd = headerSize;
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            OutputStream os = new BufferedOutputStream(Channels.newOutputStream(out), 1024 * 1024);
+            DataOutputStream data = new DataOutputStream(os);
+            data.writeInt(magic);
+            data.writeInt(version);
+
+            byte[] record = new byte[256];
+            for (Map.Entry<String, Integer> entry : offsets.entrySet()) {
+                int size = recordSize(entry.getValue());
+                if (record.length < size) {
+                    record = new byte[size];
+                }
+
+                ByteBuffer source = buffer.duplicate();
+                source.position(entry.getValue());
+                source.get(record, 0, size);
+                data.write(record, 0, size);
+
+                newOffsets.put(entry.getKey(), newEnd);
+                newEnd += size;
+            }
+            data.flush();
+            out.force(true);
+        }
+
+        // The previous mapping stays valid until collected, and is not used anymore
+        Files.move(compacted, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        channel.close();
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        end = newEnd;
+        map(end);
+        offsets = newOffsets;
+        dead = 0;
+
+        log.info("Subscription log compacted to {} bytes", end);
+    }
+
+    private BridgeSubscriptionDao decodeId(String id) {
+        return decode(offsets.get(id));
+    }
+
+    private List<BridgeSubscriptionDao> list(Map<String, Set<String>> index, String key) {
+        lock.readLock().lock();
+        try {
+            List<BridgeSubscriptionDao> daoList = new ArrayList<>();
+            for (String id : index.getOrDefault(key, Collections.emptySet())) {
+                daoList.add(decodeId(id));
+            }
+            return daoList;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<BridgeSubscriptionDao> get(String id) {
+        lock.readLock().lock();
+        try {
+            return offsets.containsKey(id) ? Optional.of(decodeId(id)) : Optional.empty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<BridgeSubscriptionDao> getWithThreadId(String threadId) {
+        lock.readLock().lock();
+        try {
+            String id = idsByThreadId.get(threadId);
+            return id == null ? Optional.empty() : Optional.of(decodeId(id));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<BridgeSubscriptionDao> getWithMatrixId(String mxId, String roomId) {
+        lock.readLock().lock();
+        try {
+            return idsByMxId.getOrDefault(mxId, Collections.emptySet()).stream()
+                    .map(this::decodeId)
+                    .filter(dao -> StringUtils.equals(roomId, dao.getRoomId()))
+                    .findFirst();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<BridgeSubscriptionDao> listForEmail(String email) {
+        return list(idsByEmail, email);
+    }
+
+    @Override
+    public List<BridgeSubscriptionDao> listForMatrixId(String mxId) {
+        return list(idsByMxId, mxId);
+    }
+
+    @Override
+    public List<BridgeSubscriptionDao> listForRoom(String roomId) {
+        return list(idsByRoomId, roomId);
+    }
+
+    @Override
+    public List<BridgeSubscriptionDao> list(String afterId, int limit) {
+        lock.readLock().lock();
+        try {
+            Map<String, Integer> page = afterId == null ? offsets : offsets.tailMap(afterId, false);
+            List<BridgeSubscriptionDao> daoList = new ArrayList<>();
+            for (Integer offset : page.values()) {
+                if (daoList.size() >= limit) {
+                    break;
+                }
+
+                daoList.add(decode(offset));
+            }
+            return daoList;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<BridgeSubscriptionDao> list() {
+        return list(null, Integer.MAX_VALUE);
+    }
+
+}
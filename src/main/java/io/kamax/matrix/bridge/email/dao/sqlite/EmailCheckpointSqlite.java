@@ -0,0 +1,94 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.dao.sqlite;
+
+import io.kamax.matrix.bridge.email.config.dao.SubscriptionSqliteConfig;
+import io.kamax.matrix.bridge.email.dao.EmailCheckpointDao;
+import io.kamax.matrix.bridge.email.dao._EmailCheckpointDao;
+import io.kamax.matrix.bridge.email.exception.StorageException;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.sql.*;
+import java.util.Optional;
+
+@Component
+public class EmailCheckpointSqlite implements InitializingBean, _EmailCheckpointDao {
+
+    private Logger log = LoggerFactory.getLogger(EmailCheckpointSqlite.class);
+
+    @Autowired
+    private SubscriptionSqliteConfig cfg;
+
+    private Connection conn;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        // Checkpoints are kept in the same DB as the subscriptions
+        File dbFile = new File(StringUtils.defaultIfBlank(cfg.getLocation(), "as-subscriptions.db")).getAbsoluteFile();
+        log.info("SQLite DB: {}", dbFile.getPath());
+
+        conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getPath());
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS email_checkpoint (id string PRIMARY KEY, uidValidity long, lastUid long)");
+        }
+    }
+
+    @Override
+    public synchronized void store(EmailCheckpointDao dao) {
+        log.debug("Storing e-mail checkpoint {} at UID {}", dao.getId(), dao.getLastUid());
+
+        try (PreparedStatement stmt = conn.prepareStatement("REPLACE INTO email_checkpoint VALUES(?,?,?)")) {
+            stmt.setString(1, dao.getId());
+            stmt.setLong(2, dao.getUidValidity());
+            stmt.setLong(3, dao.getLastUid());
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized Optional<EmailCheckpointDao> get(String id) {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT * FROM email_checkpoint WHERE id = ?")) {
+            stmt.setString(1, id);
+            try (ResultSet rSet = stmt.executeQuery()) {
+                if (!rSet.next()) {
+                    return Optional.empty();
+                }
+
+                EmailCheckpointDao dao = new EmailCheckpointDao();
+                dao.setId(rSet.getString("id"));
+                dao.setUidValidity(rSet.getLong("uidValidity"));
+                dao.setLastUid(rSet.getLong("lastUid"));
+                return Optional.of(dao);
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+}
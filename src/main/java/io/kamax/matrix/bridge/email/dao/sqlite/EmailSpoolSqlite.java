@@ -0,0 +1,164 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.dao.sqlite;
+
+import io.kamax.matrix.bridge.email.config.dao.SubscriptionSqliteConfig;
+import io.kamax.matrix.bridge.email.dao.EmailSpoolDao;
+import io.kamax.matrix.bridge.email.dao._EmailSpoolDao;
+import io.kamax.matrix.bridge.email.exception.StorageException;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+@Component
+public class EmailSpoolSqlite implements InitializingBean, _EmailSpoolDao {
+
+    private Logger log = LoggerFactory.getLogger(EmailSpoolSqlite.class);
+
+    @Autowired
+    private SubscriptionSqliteConfig cfg;
+
+    private Connection conn;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        // The spool is kept in the same DB as the subscriptions
+        File dbFile = new File(StringUtils.defaultIfBlank(cfg.getLocation(), "as-subscriptions.db")).getAbsoluteFile();
+        log.info("SQLite DB: {}", dbFile.getPath());
+
+        conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getPath());
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS email_spool (id INTEGER PRIMARY KEY AUTOINCREMENT, recipient string, data blob, attempts integer, nextAttempt long, state string, lastError string)");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS email_spool_due ON email_spool (state, nextAttempt)");
+        }
+    }
+
+    @Override
+    public synchronized long store(EmailSpoolDao dao) {
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO email_spool (recipient, data, attempts, nextAttempt, state, lastError) VALUES(?,?,?,?,?,?)", Statement.RETURN_GENERATED_KEYS)) {
+            stmt.setString(1, dao.getRecipient());
+            stmt.setBytes(2, dao.getData());
+            stmt.setInt(3, dao.getAttempts());
+            stmt.setLong(4, dao.getNextAttempt());
+            stmt.setString(5, dao.getState());
+            stmt.setString(6, dao.getLastError());
+            stmt.executeUpdate();
+
+            try (ResultSet keys = stmt.getGeneratedKeys()) {
+                if (!keys.next()) {
+                    throw new SQLException("No ID was generated for spooled e-mail");
+                }
+
+                long id = keys.getLong(1);
+                log.debug("Spooled e-mail {} to {}", id, dao.getRecipient());
+                return id;
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized void update(EmailSpoolDao dao) {
+        try (PreparedStatement stmt = conn.prepareStatement("UPDATE email_spool SET attempts = ?, nextAttempt = ?, state = ?, lastError = ? WHERE id = ?")) {
+            stmt.setInt(1, dao.getAttempts());
+            stmt.setLong(2, dao.getNextAttempt());
+            stmt.setString(3, dao.getState());
+            stmt.setString(4, dao.getLastError());
+            stmt.setLong(5, dao.getId());
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized void delete(long id) {
+        try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM email_spool WHERE id = ?")) {
+            stmt.setLong(1, id);
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    private int setState(String from, String to, Long id) {
+        String sql = "UPDATE email_spool SET state = ? WHERE state = ?" + (id != null ? " AND id = ?" : "");
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, to);
+            stmt.setString(2, from);
+            if (id != null) {
+                stmt.setLong(3, id);
+            }
+            return stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized boolean claim(long id) {
+        return setState(EmailSpoolDao.STATE_QUEUED, EmailSpoolDao.STATE_SENDING, id) > 0;
+    }
+
+    @Override
+    public synchronized int release() {
+        return setState(EmailSpoolDao.STATE_SENDING, EmailSpoolDao.STATE_QUEUED, null);
+    }
+
+    @Override
+    public synchronized List<EmailSpoolDao> listDue(long time, int limit) {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT * FROM email_spool WHERE state = ? AND nextAttempt <= ? ORDER BY nextAttempt, id LIMIT ?")) {
+            stmt.setString(1, EmailSpoolDao.STATE_QUEUED);
+            stmt.setLong(2, time);
+            stmt.setInt(3, limit);
+
+            try (ResultSet rSet = stmt.executeQuery()) {
+                List<EmailSpoolDao> daoList = new ArrayList<>();
+
+                while (rSet.next()) {
+                    EmailSpoolDao dao = new EmailSpoolDao();
+                    dao.setId(rSet.getLong("id"));
+                    dao.setRecipient(rSet.getString("recipient"));
+                    dao.setData(rSet.getBytes("data"));
+                    dao.setAttempts(rSet.getInt("attempts"));
+                    dao.setNextAttempt(rSet.getLong("nextAttempt"));
+                    dao.setState(rSet.getString("state"));
+                    dao.setLastError(rSet.getString("lastError"));
+                    daoList.add(dao);
+                }
+
+                return daoList;
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.dao.sqlite;
+
+import io.kamax.matrix.bridge.email.config.dao.SubscriptionSqliteConfig;
+import io.kamax.matrix.bridge.email.dao.MatrixTransactionDao;
+import io.kamax.matrix.bridge.email.dao._MatrixTransactionDao;
+import io.kamax.matrix.bridge.email.exception.StorageException;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+
+@Component
+public class MatrixTransactionSqlite implements InitializingBean, _MatrixTransactionDao {
+
+    private Logger log = LoggerFactory.getLogger(MatrixTransactionSqlite.class);
+
+    @Autowired
+    private SubscriptionSqliteConfig cfg;
+
+    private Connection conn;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        // Transactions are kept in the same DB as the subscriptions
+        File dbFile = new File(StringUtils.defaultIfBlank(cfg.getLocation(), "as-subscriptions.db")).getAbsoluteFile();
+        log.info("SQLite DB: {}", dbFile.getPath());
+
+        conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getPath());
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS matrix_transaction (id string PRIMARY KEY, json string, received long, attempts integer, processed boolean, nextAttempt long, dead boolean, progress string)");
+
+            // Columns added after the table was first created
+            Set<String> columns = new HashSet<>();
+            try (ResultSet rSet = stmt.executeQuery("PRAGMA table_info(matrix_transaction)")) {
+                while (rSet.next()) {
+                    columns.add(rSet.getString("name"));
+                }
+            }
+            if (!columns.contains("nextAttempt")) {
+                stmt.executeUpdate("ALTER TABLE matrix_transaction ADD COLUMN nextAttempt long NOT NULL DEFAULT 0");
+            }
+            if (!columns.contains("dead")) {
+                stmt.executeUpdate("ALTER TABLE matrix_transaction ADD COLUMN dead boolean NOT NULL DEFAULT 0");
+            }
+            if (!columns.contains("progress")) {
+                stmt.executeUpdate("ALTER TABLE matrix_transaction ADD COLUMN progress string");
+            }
+
+            stmt.executeUpdate("DROP INDEX IF EXISTS matrix_transaction_state");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS matrix_transaction_queue ON matrix_transaction (processed, dead, received)");
+        }
+    }
+
+    private MatrixTransactionDao read(ResultSet rSet) throws SQLException {
+        MatrixTransactionDao dao = new MatrixTransactionDao();
+        dao.setId(rSet.getString("id"));
+        dao.setJson(rSet.getString("json"));
+        dao.setReceived(rSet.getLong("received"));
+        dao.setAttempts(rSet.getInt("attempts"));
+        dao.setNextAttempt(rSet.getLong("nextAttempt"));
+        dao.setProcessed(rSet.getBoolean("processed"));
+        dao.setDead(rSet.getBoolean("dead"));
+
+        String progress = rSet.getString("progress");
+        if (StringUtils.isNotBlank(progress)) {
+            dao.setProgress(new HashSet<>(Arrays.asList(progress.split("\n"))));
+        }
+
+        return dao;
+    }
+
+    // Event IDs and Matrix IDs cannot contain line breaks
+    private String write(Set<String> progress) {
+        return progress.isEmpty() ? null : StringUtils.join(progress, "\n");
+    }
+
+    @Override
+    public synchronized boolean store(MatrixTransactionDao dao) {
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT OR IGNORE INTO matrix_transaction (id, json, received, attempts, processed, nextAttempt, dead, progress) VALUES(?,?,?,?,?,?,?,?)")) {
+            stmt.setString(1, dao.getId());
+            stmt.setString(2, dao.isProcessed() ? null : dao.getJson());
+            stmt.setLong(3, dao.getReceived());
+            stmt.setInt(4, dao.getAttempts());
+            stmt.setBoolean(5, dao.isProcessed());
+            stmt.setLong(6, dao.getNextAttempt());
+            stmt.setBoolean(7, dao.isDead());
+            stmt.setString(8, dao.isProcessed() ? null : write(dao.getProgress()));
+            return stmt.executeUpdate() > 0;
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized Optional<MatrixTransactionDao> get(String id) {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT * FROM matrix_transaction WHERE id = ?")) {
+            stmt.setString(1, id);
+
+            try (ResultSet rSet = stmt.executeQuery()) {
+                if (!rSet.next()) {
+                    return Optional.empty();
+                }
+
+                return Optional.of(read(rSet));
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized void update(MatrixTransactionDao dao) {
+        try (PreparedStatement stmt = conn.prepareStatement("UPDATE matrix_transaction SET json = ?, attempts = ?, processed = ?, nextAttempt = ?, dead = ?, progress = ? WHERE id = ?")) {
+            stmt.setString(1, dao.isProcessed() ? null : dao.getJson());
+            stmt.setInt(2, dao.getAttempts());
+            stmt.setBoolean(3, dao.isProcessed());
+            stmt.setLong(4, dao.getNextAttempt());
+            stmt.setBoolean(5, dao.isDead());
+            stmt.setString(6, dao.isProcessed() ? null : write(dao.getProgress()));
+            stmt.setString(7, dao.getId());
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized Optional<MatrixTransactionDao> getNextPending(int blockingAttempts, long now) {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT * FROM matrix_transaction WHERE processed = ? AND dead = ? AND (attempts < ? OR nextAttempt <= ?) ORDER BY received, rowid LIMIT 1")) {
+            stmt.setBoolean(1, false);
+            stmt.setBoolean(2, false);
+            stmt.setInt(3, blockingAttempts);
+            stmt.setLong(4, now);
+
+            try (ResultSet rSet = stmt.executeQuery()) {
+                if (!rSet.next()) {
+                    return Optional.empty();
+                }
+
+                return Optional.of(read(rSet));
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized int countDead() {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM matrix_transaction WHERE dead = ?")) {
+            stmt.setBoolean(1, true);
+
+            try (ResultSet rSet = stmt.executeQuery()) {
+                return rSet.next() ? rSet.getInt(1) : 0;
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public synchronized int purge(long before) {
+        try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM matrix_transaction WHERE processed = ? AND received < ?")) {
+            stmt.setBoolean(1, true);
+            stmt.setLong(2, before);
+            return stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+}
@@ -28,17 +28,32 @@ import io.kamax.matrix.bridge.email.exception.StorageException;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
 import java.io.File;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.*;
 
+/**
+ * Subscriptions stored in SQLite.
+ * <p>
+ * All changes go through a single writer thread and connection. Changes requested at the same time are committed
+ * in a single transaction, so they share the cost of syncing to disk. Reads use their own connections, which are
+ * not blocked by writes when using write-ahead logging.
+ */
 @Component
-public class SubscriptionSqlite implements InitializingBean, _SubscriptionDao {
+@ConditionalOnProperty(prefix = "subscription.storage", name = "type", havingValue = "sqlite", matchIfMissing = true)
+public class SubscriptionSqlite implements InitializingBean, DisposableBean, _SubscriptionDao {
 
     private Logger log = LoggerFactory.getLogger(SubscriptionSqlite.class);
 
@@ -46,6 +61,78 @@ public class SubscriptionSqlite implements InitializingBean, _SubscriptionDao {
     private SubscriptionSqliteConfig cfg;
 
     private Connection conn;
+    private PreparedStatement storeStmt;
+    private PreparedStatement deleteStmt;
+    private BlockingQueue<Reader> readers;
+    private BlockingQueue<Write> writes = new LinkedBlockingQueue<>();
+    private Thread writer;
+    private volatile boolean running;
+
+    public SubscriptionSqlite() {
+        // used by Spring
+    }
+
+    public SubscriptionSqlite(SubscriptionSqliteConfig cfg) {
+        this.cfg = cfg;
+    }
+
+    private interface SqlWrite {
+
+        void apply() throws SQLException;
+
+    }
+
+    private static class Write {
+
+        private SqlWrite op;
+        private CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Write(SqlWrite op) {
+            this.op = op;
+        }
+
+    }
+
+    private static class Reader {
+
+        private Connection conn;
+        private Map<String, PreparedStatement> statements = new HashMap<>();
+
+        Reader(Connection conn) {
+            this.conn = conn;
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt == null) {
+                stmt = conn.prepareStatement(sql);
+                statements.put(sql, stmt);
+            }
+            return stmt;
+        }
+
+    }
+
+    // Each entry brings the schema from the previous version, as stored in user_version, to the next
+    private static final String[][] migrations = {
+            {
+                    "CREATE TABLE IF NOT EXISTS subscription (id string PRIMARY KEY, sourceMxId string, timestamp long, email string, threadId string, mxId string, roomId string)"
+            },
+            {
+                    "CREATE INDEX IF NOT EXISTS subscription_threadId ON subscription (threadId)",
+                    "CREATE INDEX IF NOT EXISTS subscription_email ON subscription (email)",
+                    "CREATE INDEX IF NOT EXISTS subscription_mxId_roomId ON subscription (mxId, roomId)",
+                    "CREATE INDEX IF NOT EXISTS subscription_roomId ON subscription (roomId)"
+            }
+    };
+
+    private Connection connect(String path) throws SQLException {
+        Connection c = DriverManager.getConnection("jdbc:sqlite:" + path);
+        try (Statement stmt = c.createStatement()) {
+            stmt.execute("PRAGMA busy_timeout = 10000");
+        }
+        return c;
+    }
 
     @Override
     public void afterPropertiesSet() throws Exception {
@@ -56,68 +143,294 @@ public class SubscriptionSqlite implements InitializingBean, _SubscriptionDao {
             log.info("SQLlite DB file does not exist, provisioning");
         }
 
-        conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getPath());
+        conn = connect(dbFile.getPath());
+        try (Statement stmt = conn.createStatement()) {
+            if (cfg.isWal()) {
+                stmt.execute("PRAGMA journal_mode = WAL");
+            }
+        }
+        migrate();
+        storeStmt = conn.prepareStatement("REPLACE INTO subscription VALUES(?,?,?,?,?,?,?)");
+        deleteStmt = conn.prepareStatement("DELETE FROM subscription WHERE id = ?");
+
+        readers = new ArrayBlockingQueue<>(cfg.getReaders());
+        for (int i = 0; i < cfg.getReaders(); i++) {
+            readers.add(new Reader(connect(dbFile.getPath())));
+        }
+
+        running = true;
+        writer = new Thread(this::runWriter);
+        writer.setName("subscription-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void migrate() throws SQLException {
         try (Statement stmt = conn.createStatement()) {
-            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS subscription (id string PRIMARY KEY, sourceMxId string, timestamp long, email string, threadId string, mxId string, roomId string)");
+            int version;
+            try (ResultSet rSet = stmt.executeQuery("PRAGMA user_version")) {
+                version = rSet.next() ? rSet.getInt(1) : 0;
+            }
+
+            if (version > migrations.length) {
+                throw new StorageException("Subscription DB schema version " + version + " is newer than supported version " + migrations.length);
+            }
+
+            for (; version < migrations.length; version++) {
+                log.info("Migrating subscription DB schema to version {}", version + 1);
+
+                conn.setAutoCommit(false);
+                try {
+                    for (String sql : migrations[version]) {
+                        stmt.executeUpdate(sql);
+                    }
+                    stmt.executeUpdate("PRAGMA user_version = " + (version + 1));
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            }
         }
     }
 
     @Override
-    public void store(BridgeSubscriptionDao dao) {
-        log.info("Storing subscription {} in DB", dao.getSubId());
+    public void destroy() throws Exception {
+        running = false;
+        if (writer != null) {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        }
 
-        try (PreparedStatement stmt = conn.prepareStatement("REPLACE INTO subscription VALUES(?,?,?,?,?,?,?)")) {
-            stmt.setString(1, dao.getSubId());
-            stmt.setString(2, dao.getSourceMxId());
-            stmt.setLong(3, dao.getTimestamp());
-            stmt.setString(4, dao.getEmail());
-            stmt.setString(5, dao.getThreadId());
-            stmt.setString(6, dao.getMxId());
-            stmt.setString(7, dao.getRoomId());
+        if (readers != null) {
+            for (Reader reader : readers) {
+                for (PreparedStatement stmt : reader.statements.values()) {
+                    stmt.close();
+                }
+                reader.conn.close();
+            }
+        }
 
-            int rowCount = stmt.executeUpdate();
-            log.info("Updated rows: {}", rowCount);
+        if (conn != null) {
+            conn.close();
+        }
+    }
+
+    private void runWriter() {
+        List<Write> batch = new ArrayList<>();
+        while (running || !writes.isEmpty()) {
+            try {
+                Write first = writes.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                writes.drainTo(batch, cfg.getBatch() - 1);
+                commit(batch);
+            } catch (RuntimeException e) {
+                // Keeps the writer alive, callers of changes not yet completed get the error
+                log.error("Unable to write {} subscription change(s)", batch.size(), e);
+                StorageException error = e instanceof StorageException ? (StorageException) e : new StorageException(e);
+                batch.forEach(write -> write.done.completeExceptionally(error));
+            } catch (InterruptedException e) {
+                log.warn("Subscription writer interrupted, {} pending change(s) not written", writes.size());
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+
+        Write pending;
+        while ((pending = writes.poll()) != null) {
+            pending.done.completeExceptionally(new StorageException("Subscription storage is closed"));
+        }
+    }
+
+    private void commit(List<Write> batch) {
+        try {
+            conn.setAutoCommit(false);
+            try {
+                for (Write write : batch) {
+                    write.op.apply();
+                }
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+
+            log.debug("Committed {} subscription change(s)", batch.size());
+            batch.forEach(write -> write.done.complete(null));
+        } catch (SQLException | RuntimeException e) {
+            if (batch.size() == 1) {
+                batch.get(0).done.completeExceptionally(e instanceof StorageException ? e : new StorageException(e));
+                return;
+            }
+
+            // Only fail the change(s) at fault
+            log.warn("Unable to commit {} subscription changes together, retrying one by one", batch.size(), e);
+            for (Write write : batch) {
+                commit(Collections.singletonList(write));
+            }
+        }
+    }
+
+    private void write(SqlWrite op) {
+        if (!running) {
+            throw new StorageException("Subscription storage is closed");
+        }
+
+        Write write = new Write(op);
+        writes.add(write);
+
+        // The writer might have stopped before this change was queued. If it was not taken, it never will be.
+        if ((!running || !writer.isAlive()) && writes.remove(write)) {
+            throw new StorageException("Subscription storage is closed");
+        }
+
+        try {
+            write.done.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof StorageException) {
+                throw (StorageException) e.getCause();
+            }
+
+            throw new StorageException(e.getCause());
+        }
+    }
+
+    private <T> T read(SqlRead<T> op) {
+        Reader reader;
+        try {
+            reader = readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException(e);
+        }
+
+        try {
+            return op.apply(reader);
         } catch (SQLException e) {
             throw new StorageException(e);
+        } finally {
+            readers.add(reader);
         }
     }
 
+    private interface SqlRead<T> {
+
+        T apply(Reader reader) throws SQLException;
+
+    }
+
+    @Override
+    public void store(BridgeSubscriptionDao dao) {
+        log.info("Storing subscription {} in DB", dao.getSubId());
+
+        write(() -> {
+            storeStmt.setString(1, dao.getSubId());
+            storeStmt.setString(2, dao.getSourceMxId());
+            storeStmt.setLong(3, dao.getTimestamp());
+            storeStmt.setString(4, dao.getEmail());
+            storeStmt.setString(5, dao.getThreadId());
+            storeStmt.setString(6, dao.getMxId());
+            storeStmt.setString(7, dao.getRoomId());
+
+            int rowCount = storeStmt.executeUpdate();
+            log.info("Updated rows: {}", rowCount);
+        });
+    }
+
     @Override
     public void delete(String id) {
         log.info("Deleting subscription {} from DB", id);
 
-        try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM subscription WHERE id = ?")) {
-            stmt.setString(1, id);
-            int rowCount = stmt.executeUpdate();
+        write(() -> {
+            deleteStmt.setString(1, id);
+            int rowCount = deleteStmt.executeUpdate();
             log.info("Updated rows: {}", rowCount);
-        } catch (SQLException e) {
-            throw new StorageException(e);
-        }
+        });
     }
 
-    @Override
-    public List<BridgeSubscriptionDao> list() {
-        try (Statement stmt = conn.createStatement()) {
-            try (ResultSet rSet = stmt.executeQuery("SELECT * FROM subscription")) {
+    private BridgeSubscriptionDao read(ResultSet rSet) throws SQLException {
+        BridgeSubscriptionDao dao = new BridgeSubscriptionDao();
+        dao.setSubId(rSet.getString("id"));
+        dao.setSourceMxId(rSet.getString("sourceMxId"));
+        dao.setTimestamp(rSet.getLong("timestamp"));
+        dao.setEmail(rSet.getString("email"));
+        dao.setThreadId(rSet.getString("threadId"));
+        dao.setMxId(rSet.getString("mxId"));
+        dao.setRoomId(rSet.getString("roomId"));
+        return dao;
+    }
+
+    private Optional<BridgeSubscriptionDao> find(String sql, Object... params) {
+        List<BridgeSubscriptionDao> daoList = query(sql, params);
+        return daoList.isEmpty() ? Optional.empty() : Optional.of(daoList.get(0));
+    }
+
+    private List<BridgeSubscriptionDao> query(String sql, Object... params) {
+        return read(reader -> {
+            PreparedStatement stmt = reader.prepare(sql);
+            for (int i = 0; i < params.length; i++) {
+                stmt.setObject(i + 1, params[i]);
+            }
+
+            try (ResultSet rSet = stmt.executeQuery()) {
                 List<BridgeSubscriptionDao> daoList = new ArrayList<>();
 
                 while (rSet.next()) {
-                    BridgeSubscriptionDao dao = new BridgeSubscriptionDao();
-                    dao.setSubId(rSet.getString("id"));
-                    dao.setSourceMxId(rSet.getString("sourceMxId"));
-                    dao.setTimestamp(rSet.getLong("timestamp"));
-                    dao.setEmail(rSet.getString("email"));
-                    dao.setThreadId(rSet.getString("threadId"));
-                    dao.setMxId(rSet.getString("mxId"));
-                    dao.setRoomId(rSet.getString("roomId"));
-                    daoList.add(dao);
+                    daoList.add(read(rSet));
                 }
 
                 return daoList;
             }
-        } catch (SQLException e) {
-            throw new StorageException(e);
-        }
+        });
+    }
+
+    @Override
+    public Optional<BridgeSubscriptionDao> get(String id) {
+        return find("SELECT * FROM subscription WHERE id = ?", id);
+    }
+
+    @Override
+    public Optional<BridgeSubscriptionDao> getWithThreadId(String threadId) {
+        return find("SELECT * FROM subscription WHERE threadId = ? LIMIT 1", threadId);
+    }
+
+    @Override
+    public Optional<BridgeSubscriptionDao> getWithMatrixId(String mxId, String roomId) {
+        return find("SELECT * FROM subscription WHERE mxId = ? AND roomId = ? LIMIT 1", mxId, roomId);
+    }
+
+    @Override
+    public List<BridgeSubscriptionDao> listForEmail(String email) {
+        return query("SELECT * FROM subscription WHERE email = ?", email);
+    }
+
+    @Override
+    public List<BridgeSubscriptionDao> listForMatrixId(String mxId) {
+        return query("SELECT * FROM subscription WHERE mxId = ?", mxId);
+    }
+
+    @Override
+    public List<BridgeSubscriptionDao> listForRoom(String roomId) {
+        return query("SELECT * FROM subscription WHERE roomId = ?", roomId);
+    }
+
+    @Override
+    public List<BridgeSubscriptionDao> list(String afterId, int limit) {
+        return query("SELECT * FROM subscription WHERE id > ? ORDER BY id LIMIT ?", StringUtils.defaultString(afterId), limit);
+    }
+
+    @Override
+    public List<BridgeSubscriptionDao> list() {
+        return query("SELECT * FROM subscription");
     }
 
 }
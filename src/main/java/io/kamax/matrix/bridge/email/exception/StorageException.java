@@ -22,6 +22,10 @@ package io.kamax.matrix.bridge.email.exception;
 
 public class StorageException extends RuntimeException {
 
+    public StorageException(String message) {
+        super(message);
+    }
+
     public StorageException(Throwable t) {
         super(t);
     }
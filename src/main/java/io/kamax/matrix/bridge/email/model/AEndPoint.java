@@ -25,8 +25,8 @@ import io.kamax.matrix.bridge.email.model.subscription._SubscriptionEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 
 public abstract class AEndPoint<K, V extends _BridgeMessage, S extends _BridgeMessage> implements _EndPoint<K, V, S> {
@@ -38,8 +38,8 @@ public abstract class AEndPoint<K, V extends _BridgeMessage, S extends _BridgeMe
     private String channel;
 
     private boolean isClosed;
-    private List<_EndPointMessageListener<S>> msgListeners = new ArrayList<>();
-    private List<_EndPointStateListener> stateListeners = new ArrayList<>();
+    private List<_EndPointMessageListener<S>> msgListeners = new CopyOnWriteArrayList<>();
+    private List<_EndPointStateListener> stateListeners = new CopyOnWriteArrayList<>();
 
     public AEndPoint(String id, K identity, String channel) {
         this.id = id;
@@ -110,6 +110,13 @@ public abstract class AEndPoint<K, V extends _BridgeMessage, S extends _BridgeMe
         msgListeners.add(listener);
     }
 
+    @Override
+    public void removeMessageListener(_EndPointMessageListener<S> listener) {
+        log.info("Removing message listener from endpoint {}", id);
+
+        msgListeners.remove(listener);
+    }
+
     public void addStateListener(_EndPointStateListener listener) {
         log.info("Adding state listener to endpoint {}", id);
 
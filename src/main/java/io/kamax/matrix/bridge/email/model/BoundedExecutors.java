@@ -0,0 +1,71 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BoundedExecutors {
+
+    private static Logger log = LoggerFactory.getLogger(BoundedExecutors.class);
+
+    private BoundedExecutors() {
+        // only static methods
+    }
+
+    /**
+     * Create a fixed size thread pool with a bounded queue. When the queue is full, the submitting thread is blocked
+     * until room is available, slowing down producers instead of dropping tasks.
+     *
+     * @param name      Prefix for the thread names
+     * @param threads   Number of threads
+     * @param queueSize Maximum number of pending tasks
+     * @return The executor
+     */
+    public static ThreadPoolExecutor create(String name, int threads, int queueSize) {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread t = new Thread(r);
+            t.setName(name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }, (r, executor) -> {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException(name + " executor is shut down");
+            }
+
+            log.warn("{} executor is saturated, waiting for room in the queue", name);
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for room in " + name + " executor", e);
+            }
+        });
+    }
+
+}
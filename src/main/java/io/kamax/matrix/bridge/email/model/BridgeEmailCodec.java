@@ -20,67 +20,160 @@
 
 package io.kamax.matrix.bridge.email.model;
 
-import org.apache.commons.codec.DecoderException;
-import org.apache.commons.codec.binary.Hex;
 import org.springframework.stereotype.Component;
 
-import java.nio.charset.StandardCharsets;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Locale;
 
+/**
+ * Encodes e-mail addresses into strings valid as Matrix ID localparts, and back.
+ * <p>
+ * Lowercase letters, digits, <code>-</code>, <code>.</code> and <code>_</code> are kept as is. Any other character
+ * is replaced by its UTF-8 bytes, each written as <code>=</code> followed by two lowercase hex digits.
+ */
 @Component
 public class BridgeEmailCodec {
 
-
     public static final String delimiter = "=";
-    public static final String charsToReplaceRegex = "[^0-9a-z-._]+";
-    public static final Pattern charsToReplacePattern = Pattern.compile(charsToReplaceRegex);
-    public static final Pattern decodePattern = Pattern.compile("(=[0-9a-f]{2})+");
 
-    public String decode(String valueEncoded) {
-        StringBuilder builder = new StringBuilder();
-
-        Matcher m = decodePattern.matcher(valueEncoded);
-        int prevEnd = 0;
-        while (m.find()) {
-            try {
-                int start = m.start();
-                int end = m.end();
-                String sub = valueEncoded.substring(start, end).replaceAll(delimiter, "");
-                String decoded = new String(Hex.decodeHex(sub.toCharArray()), StandardCharsets.UTF_8);
-                builder.append(valueEncoded.substring(prevEnd, start));
-                builder.append(decoded);
-                prevEnd = end - 1;
-            } catch (DecoderException e) {
-                e.printStackTrace();
-            }
+    private static final char delimiterChar = '=';
+    private static final char[] hexDigits = "0123456789abcdef".toCharArray();
+    private static final boolean[] kept = new boolean[128];
+    private static final int[] hexValues = new int[128];
+
+    static {
+        for (char c = '0'; c <= '9'; c++) {
+            kept[c] = true;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            kept[c] = true;
+        }
+        kept['-'] = true;
+        kept['.'] = true;
+        kept['_'] = true;
+
+        for (int i = 0; i < hexValues.length; i++) {
+            hexValues[i] = -1;
+        }
+        for (int i = 0; i < 16; i++) {
+            hexValues[hexDigits[i]] = i;
         }
-        prevEnd++;
-        if (prevEnd < valueEncoded.length()) {
-            builder.append(valueEncoded.substring(prevEnd, valueEncoded.length()));
+    }
+
+    private static int hexValue(char c) {
+        return c < 128 ? hexValues[c] : -1;
+    }
+
+    /**
+     * @return The value of the escaped byte at the given position, or -1 if there is none
+     */
+    private static int escapedByte(String value, int i) {
+        if (i + 3 > value.length() || value.charAt(i) != delimiterChar) {
+            return -1;
         }
 
-        if (builder.length() == 0) {
+        int high = hexValue(value.charAt(i + 1));
+        int low = hexValue(value.charAt(i + 2));
+        return high < 0 || low < 0 ? -1 : (high << 4) | low;
+    }
+
+    public String decode(String valueEncoded) {
+        if (valueEncoded.indexOf(delimiterChar) < 0) {
             return valueEncoded;
-        } else {
-            return builder.toString();
         }
+
+        StringBuilder builder = new StringBuilder(valueEncoded.length());
+        int i = 0;
+        while (i < valueEncoded.length()) {
+            int b = escapedByte(valueEncoded, i);
+            if (b < 0) {
+                builder.append(valueEncoded.charAt(i));
+                i++;
+                continue;
+            }
+
+            // Decode one UTF-8 sequence from escaped bytes. The range of the second byte excludes overlong forms,
+            // surrogates and values above U+10FFFF.
+            int length;
+            int cp;
+            int min = 0x80;
+            int max = 0xBF;
+            if (b < 0x80) {
+                length = 1;
+                cp = b;
+            } else if (b >= 0xC2 && b <= 0xDF) {
+                length = 2;
+                cp = b & 0x1F;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                length = 3;
+                cp = b & 0x0F;
+                min = b == 0xE0 ? 0xA0 : min;
+                max = b == 0xED ? 0x9F : max;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                length = 4;
+                cp = b & 0x07;
+                min = b == 0xF0 ? 0x90 : min;
+                max = b == 0xF4 ? 0x8F : max;
+            } else {
+                length = 0;
+                cp = 0;
+            }
+
+            int j = 1;
+            while (j < length) {
+                int next = escapedByte(valueEncoded, i + j * 3);
+                if (next < (j == 1 ? min : 0x80) || next > (j == 1 ? max : 0xBF)) {
+                    break;
+                }
+
+                cp = (cp << 6) | (next & 0x3F);
+                j++;
+            }
+
+            if (length == 0 || j < length) {
+                // Malformed sequence, its longest valid start replaced as recommended by Unicode
+                builder.append('\uFFFD');
+                i += 3 * Math.max(1, j);
+            } else {
+                builder.appendCodePoint(cp);
+                i += 3 * length;
+            }
+        }
+
+        return builder.toString();
+    }
+
+    private static void appendByte(StringBuilder builder, int b) {
+        builder.append(delimiterChar).append(hexDigits[(b >> 4) & 0xF]).append(hexDigits[b & 0xF]);
     }
 
     public String encode(String value) {
-        value = value.toLowerCase();
-
-        StringBuilder builder = new StringBuilder();
-        for (Character c : value.toCharArray()) {
-            String s = c.toString();
-            Matcher lp = charsToReplacePattern.matcher(s);
-            if (!lp.find()) {
-                builder.append(s);
+        value = value.toLowerCase(Locale.ROOT);
+
+        StringBuilder builder = new StringBuilder(value.length() + 16);
+        int i = 0;
+        while (i < value.length()) {
+            int cp = value.codePointAt(i);
+            i += Character.charCount(cp);
+
+            if (cp < 128 && kept[cp]) {
+                builder.append((char) cp);
+            } else if (cp < 0x80) {
+                appendByte(builder, cp);
+            } else if (cp < 0x800) {
+                appendByte(builder, 0xC0 | (cp >> 6));
+                appendByte(builder, 0x80 | (cp & 0x3F));
+            } else if (cp < 0x10000 && Character.isSurrogate((char) cp)) {
+                // Unpaired surrogate, which cannot be represented in UTF-8
+                appendByte(builder, '?');
+            } else if (cp < 0x10000) {
+                appendByte(builder, 0xE0 | (cp >> 12));
+                appendByte(builder, 0x80 | ((cp >> 6) & 0x3F));
+                appendByte(builder, 0x80 | (cp & 0x3F));
             } else {
-                for (byte b : c.toString().getBytes(StandardCharsets.UTF_8)) {
-                    builder.append(delimiter);
-                    builder.append(Hex.encodeHexString(new byte[]{b}));
-                }
+                appendByte(builder, 0xF0 | (cp >> 18));
+                appendByte(builder, 0x80 | ((cp >> 12) & 0x3F));
+                appendByte(builder, 0x80 | ((cp >> 6) & 0x3F));
+                appendByte(builder, 0x80 | (cp & 0x3F));
             }
         }
 
@@ -0,0 +1,236 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.model;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Concurrent cache bounded in size and time.
+ * <p>
+ * Entries expire a given time after they were written or, if enabled, last accessed.
+ * When the cache grows over its maximum size, the least recently accessed entries are evicted in batch.
+ *
+ * @param <K> Type of the keys
+ * @param <V> Type of the values
+ */
+public class ExpiringCache<K, V> {
+
+    private class Entry {
+
+        private V value;
+        private long written;
+        private volatile long accessed;
+
+        Entry(V value, long now) {
+            this.value = value;
+            this.written = now;
+            this.accessed = now;
+        }
+
+        boolean isExpired(long now) {
+            return ttl > 0 && now - (expireAfterAccess ? accessed : written) >= ttl;
+        }
+
+    }
+
+    private int maxSize;
+    private long ttl;
+    private boolean expireAfterAccess;
+    private LongSupplier clock;
+
+    private Map<K, Entry> entries = new ConcurrentHashMap<>();
+    private AtomicBoolean evicting = new AtomicBoolean();
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxSize           Maximum number of entries
+     * @param ttl               Time to live of entries, in milliseconds. 0 to never expire
+     * @param expireAfterAccess If the time to live starts from the last access instead of the last write
+     */
+    public ExpiringCache(int maxSize, long ttl, boolean expireAfterAccess) {
+        this(maxSize, ttl, expireAfterAccess, System::currentTimeMillis);
+    }
+
+    ExpiringCache(int maxSize, long ttl, boolean expireAfterAccess, LongSupplier clock) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache size must be at least 1");
+        }
+
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.expireAfterAccess = expireAfterAccess;
+        this.clock = clock;
+    }
+
+    private Optional<Entry> getEntry(K key, long now) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return Optional.empty();
+        }
+
+        if (entry.isExpired(now)) {
+            entries.remove(key, entry);
+            return Optional.empty();
+        }
+
+        entry.accessed = now;
+        return Optional.of(entry);
+    }
+
+    private void evictIfNeeded() {
+        if (entries.size() <= maxSize || !evicting.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            long now = clock.getAsLong();
+            entries.entrySet().removeIf(e -> e.getValue().isExpired(now));
+
+            int excess = entries.size() - maxSize;
+            if (excess <= 0) {
+                return;
+            }
+
+            // Evict a bit more than needed so we don't go through this on every write
+            int toEvict = Math.min(entries.size(), excess + Math.max(1, maxSize / 10));
+            // Access times are copied first, as they can change while sorting
+            List<Map.Entry<K, Long>> oldest = new ArrayList<>();
+            entries.forEach((k, e) -> oldest.add(new AbstractMap.SimpleImmutableEntry<>(k, e.accessed)));
+            oldest.sort(Map.Entry.comparingByValue());
+            for (Map.Entry<K, Long> e : oldest.subList(0, Math.min(oldest.size(), toEvict))) {
+                Entry entry = entries.get(e.getKey());
+                if (entry != null && entry.accessed <= e.getValue() && entries.remove(e.getKey(), entry)) {
+                    evictions.incrementAndGet();
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    public Optional<V> get(K key) {
+        Optional<Entry> entry = getEntry(key, clock.getAsLong());
+        (entry.isPresent() ? hits : misses).incrementAndGet();
+        return entry.map(e -> e.value);
+    }
+
+    /**
+     * Get the value for a key, loading it if absent or expired. The loader is not called under a lock,
+     * so concurrent calls for the same key may each load the value.
+     *
+     * @param key    The key
+     * @param loader Produces the value. null values are returned but not cached
+     * @return The cached or loaded value
+     */
+    public V computeIfAbsent(K key, Function<K, V> loader) {
+        long now = clock.getAsLong();
+        Optional<Entry> entry = getEntry(key, now);
+        if (entry.isPresent()) {
+            hits.incrementAndGet();
+            return entry.get().value;
+        }
+
+        misses.incrementAndGet();
+        V value = loader.apply(key);
+        if (value != null) {
+            entries.put(key, new Entry(value, now));
+            evictIfNeeded();
+        }
+
+        return value;
+    }
+
+    /**
+     * Atomically add a value if the key is absent or expired.
+     *
+     * @param key   The key
+     * @param value The value
+     * @return The current value if there was one, else empty and the value was added
+     */
+    public Optional<V> putIfAbsent(K key, V value) {
+        long now = clock.getAsLong();
+        Entry fresh = new Entry(value, now);
+        Entry current = entries.compute(key, (k, e) -> e == null || e.isExpired(now) ? fresh : e);
+        if (current != fresh) {
+            hits.incrementAndGet();
+            current.accessed = now;
+            return Optional.of(current.value);
+        }
+
+        misses.incrementAndGet();
+        evictIfNeeded();
+        return Optional.empty();
+    }
+
+    public void put(K key, V value) {
+        entries.put(key, new Entry(value, clock.getAsLong()));
+        evictIfNeeded();
+    }
+
+    public void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    /**
+     * Remove all expired entries.
+     */
+    public void cleanUp() {
+        long now = clock.getAsLong();
+        entries.entrySet().removeIf(e -> e.getValue().isExpired(now));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public double getHitRate() {
+        long total = getHits() + getMisses();
+        return total == 0 ? 0 : (double) getHits() / total;
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.model;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor running tasks in parallel while keeping tasks submitted with the same key in submission order.
+ */
+public class OrderedExecutor {
+
+    private ThreadPoolExecutor[] lanes;
+
+    public OrderedExecutor(String name, int threads, int queueSize) {
+        lanes = new ThreadPoolExecutor[threads];
+        for (int i = 0; i < threads; i++) {
+            lanes[i] = BoundedExecutors.create(name + "-" + (i + 1), 1, queueSize);
+        }
+    }
+
+    private ThreadPoolExecutor getLane(Object key) {
+        return lanes[Math.floorMod(key.hashCode(), lanes.length)];
+    }
+
+    /**
+     * Submit a task, blocking if the queue of its lane is full.
+     *
+     * @param key  Tasks with equal keys are run one after the other, in submission order
+     * @param task The task to run
+     * @return A future completed when the task has run
+     */
+    public CompletableFuture<Void> submit(Object key, Runnable task) {
+        return CompletableFuture.runAsync(task, getLane(key));
+    }
+
+    public void shutdown() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    /**
+     * Wait for the tasks of all lanes to run after a shutdown.
+     *
+     * @param timeout Maximum time to wait, for all lanes together
+     * @param unit    Unit of the timeout
+     * @return true if all lanes terminated, false if the timeout elapsed before
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ThreadPoolExecutor lane : lanes) {
+            if (!lane.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+}
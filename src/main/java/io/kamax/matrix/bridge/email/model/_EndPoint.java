@@ -41,6 +41,8 @@ public interface _EndPoint<K, V extends _BridgeMessage, S extends _BridgeMessage
 
     void addMessageListener(_EndPointMessageListener<S> listener);
 
+    void removeMessageListener(_EndPointMessageListener<S> listener);
+
     void addStateListener(_EndPointStateListener listener);
 
     interface _EndPointMessageListener<S> {
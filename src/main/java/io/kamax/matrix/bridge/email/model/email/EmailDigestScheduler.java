@@ -0,0 +1,94 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.model.email;
+
+import io.kamax.matrix.bridge.email.config.email.EmailSenderDigestConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the delayed flush of e-mail digests once their window is over.
+ * Digests still pending at shutdown are flushed right away so no message is lost.
+ */
+@Component
+@DependsOn("emailSendQueue")
+public class EmailDigestScheduler implements InitializingBean, DisposableBean {
+
+    private Logger log = LoggerFactory.getLogger(EmailDigestScheduler.class);
+
+    @Autowired
+    private EmailSenderDigestConfig cfg;
+
+    private ScheduledThreadPoolExecutor executor;
+    private Set<Runnable> pending = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r);
+            t.setName("email-digest");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdownNow();
+
+        log.info("Flushing {} pending e-mail digest(s)", pending.size());
+        for (Runnable flush : pending) {
+            try {
+                flush.run();
+            } catch (RuntimeException e) {
+                log.error("Unable to flush e-mail digest", e);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return cfg.isEnabled();
+    }
+
+    public int getMax() {
+        return cfg.getMax();
+    }
+
+    public void schedule(Runnable flush) {
+        pending.add(flush);
+        executor.schedule(() -> {
+            pending.remove(flush);
+            flush.run();
+        }, cfg.getWindow(), TimeUnit.SECONDS);
+    }
+
+}
@@ -20,8 +20,6 @@
 
 package io.kamax.matrix.bridge.email.model.email;
 
-import com.sun.mail.smtp.SMTPTransport;
-import io.kamax.matrix.bridge.email.config.email.EmailSenderConfig;
 import io.kamax.matrix.bridge.email.model.AEndPoint;
 import io.kamax.matrix.bridge.email.model.matrix._MatrixBridgeMessage;
 import io.kamax.matrix.bridge.email.model.subscription._BridgeSubscription;
@@ -32,33 +30,35 @@ import org.slf4j.LoggerFactory;
 
 import javax.mail.Message;
 import javax.mail.MessagingException;
-import javax.mail.Session;
-import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.ParseException;
 import java.io.IOException;
-import java.util.Date;
-import java.util.Optional;
+import java.util.*;
 
 public class EmailEndPoint extends AEndPoint<String, _MatrixBridgeMessage, _EmailBridgeMessage> implements _EmailEndPoint {
 
     private Logger log = LoggerFactory.getLogger(EmailEndPoint.class);
 
-    private EmailSenderConfig cfg;
+    private EmailSendQueue queue;
+    private EmailDigestScheduler digests;
     private _EmailFormatterOutbound formatter;
 
-    private Session session;
+    private final Object digestLock = new Object();
+    private _BridgeSubscription digestSub;
+    private List<_MatrixBridgeMessage> digest = new ArrayList<>();
+    private long digestGeneration;
 
-    public EmailEndPoint(String id, String email, String emailKey, EmailSenderConfig cfg, _EmailFormatterOutbound formatter) {
+    public EmailEndPoint(String id, String email, String emailKey, EmailSendQueue queue, EmailDigestScheduler digests, _EmailFormatterOutbound formatter) {
         super(id, email, emailKey);
-        this.cfg = cfg;
+        this.queue = queue;
+        this.digests = digests;
         this.formatter = formatter;
-
-        session = Session.getInstance(System.getProperties());
     }
 
     @Override
     protected void closeImpl() {
+        flushDigest();
+
         // TODO implement me
         log.warn("Email endpoint close: stub");
     }
@@ -68,14 +68,8 @@ public class EmailEndPoint extends AEndPoint<String, _MatrixBridgeMessage, _Emai
         msg.setSentDate(new Date());
         msg.setRecipients(Message.RecipientType.TO, getIdentity());
 
-        SMTPTransport transport = (SMTPTransport) session.getTransport("smtp");
-        transport.setStartTLS(cfg.getTls() > 0);
-        transport.setRequireStartTLS(cfg.getTls() > 1);
-        transport.connect(cfg.getHost(), cfg.getPort(), cfg.getLogin(), cfg.getPassword());
-        log.info("Sending email via SMTP using {}:{}", cfg.getHost(), cfg.getPort());
-
         try {
-            transport.sendMessage(msg, InternetAddress.parse(getIdentity()));
+            queue.enqueue(getIdentity(), msg);
         } catch (ParseException e) {
             try {
                 log.error("Invalid content in email: {}", e.getMessage());
@@ -86,9 +80,7 @@ public class EmailEndPoint extends AEndPoint<String, _MatrixBridgeMessage, _Emai
                 log.error("Impossible exception - REPORT!", e1);
             }
         } catch (MessagingException e) {
-            log.error("Error when sending email to {}", getIdentity(), e);
-        } finally {
-            transport.close();
+            log.error("Error when queuing email to {}", getIdentity(), e);
         }
     }
 
@@ -108,24 +100,79 @@ public class EmailEndPoint extends AEndPoint<String, _MatrixBridgeMessage, _Emai
         }
     }
 
-    @Override
-    protected void sendMessageImpl(_BridgeSubscription sub, _MatrixBridgeMessage msg) {
-        log.info("Email bridge: sending message from {} to {} - start", msg.getSender(), getIdentity());
+    private void sendMessages(_BridgeSubscription sub, List<_MatrixBridgeMessage> msgs) {
+        log.info("Email bridge: sending {} message(s) to {} - start", msgs.size(), getIdentity());
 
         try {
-            Optional<MimeMessage> mimeMsg = formatter.get(sub, msg);
+            Optional<MimeMessage> mimeMsg = formatter.get(sub, msgs);
             if (!mimeMsg.isPresent()) {
-                log.info("Email bridge: formatter did not return any content for matrix message, ignoring");
+                log.info("Email bridge: formatter did not return any content for matrix message(s), ignoring");
             } else {
                 send(mimeMsg.get());
-                log.info("Email bridge: sending message from {} to {} - success", msg.getSender(), getIdentity());
+                log.info("Email bridge: sending {} message(s) to {} - success", msgs.size(), getIdentity());
             }
         } catch (Exception e) {
-            log.error("Email bridge: sending message from {} to {} - failure", msg.getSender(), getIdentity());
+            log.error("Email bridge: sending {} message(s) to {} - failure", msgs.size(), getIdentity());
             throw new RuntimeException(e);
         }
 
-        log.info("Email bridge: sending message from {} to {} - end", msg.getSender(), getIdentity());
+        log.info("Email bridge: sending {} message(s) to {} - end", msgs.size(), getIdentity());
+    }
+
+    private void flushDigest() {
+        flushDigest(null);
+    }
+
+    /**
+     * @param generation The digest to flush, or null for the current one. A digest already sent for being full is
+     *                   not flushed again, so the next one can still wait for its own window.
+     */
+    private void flushDigest(Long generation) {
+        _BridgeSubscription sub;
+        List<_MatrixBridgeMessage> msgs;
+        synchronized (digestLock) {
+            if (digest.isEmpty() || (generation != null && generation != digestGeneration)) {
+                return;
+            }
+
+            sub = digestSub;
+            msgs = digest;
+            digest = new ArrayList<>();
+            digestGeneration++;
+        }
+
+        try {
+            sendMessages(sub, msgs);
+        } catch (RuntimeException e) {
+            log.error("Email bridge: unable to send digest of {} message(s) to {}", msgs.size(), getIdentity(), e);
+        }
+    }
+
+    @Override
+    protected void sendMessageImpl(_BridgeSubscription sub, _MatrixBridgeMessage msg) {
+        if (!digests.isEnabled()) {
+            sendMessages(sub, Collections.singletonList(msg));
+            return;
+        }
+
+        boolean isFirst;
+        boolean isFull;
+        long generation;
+        synchronized (digestLock) {
+            digestSub = sub;
+            digest.add(msg);
+            isFirst = digest.size() == 1;
+            isFull = digest.size() >= digests.getMax();
+            generation = digestGeneration;
+        }
+
+        log.info("Email bridge: message from {} to {} added to digest", msg.getSender(), getIdentity());
+
+        if (isFull) {
+            flushDigest();
+        } else if (isFirst) {
+            digests.schedule(() -> flushDigest(generation));
+        }
     }
 
     void inject(_EmailBridgeMessage msg) {
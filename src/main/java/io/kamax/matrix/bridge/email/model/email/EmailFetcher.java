@@ -20,7 +20,11 @@
 
 package io.kamax.matrix.bridge.email.model.email;
 
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
 import io.kamax.matrix.bridge.email.config.email.EmailReceiverConfig;
+import io.kamax.matrix.bridge.email.dao.EmailCheckpointDao;
+import io.kamax.matrix.bridge.email.dao._EmailCheckpointDao;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
@@ -30,7 +34,13 @@ import org.springframework.stereotype.Component;
 import javax.mail.*;
 import javax.mail.internet.InternetAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -42,12 +52,18 @@ public class EmailFetcher implements _EmailFetcher, InitializingBean {
     @Autowired
     private EmailReceiverConfig recv;
 
-    private final int sleepTime = 1000;
+    @Autowired
+    private _EmailCheckpointDao checkpointStore;
+
+    private final long joinTime = 5000L;
     private final String keyGroupName = "key";
     private Store store;
     private Folder folder;
     private Thread runner;
+    private ScheduledExecutorService idleKeeper;
     private Pattern recvPattern;
+    private FetchProfile fetchProfile;
+    private EmailCheckpointDao checkpoint;
 
     private List<_EmailMessageListener> listeners;
 
@@ -55,6 +71,25 @@ public class EmailFetcher implements _EmailFetcher, InitializingBean {
     public void afterPropertiesSet() throws Exception {
         recvPattern = Pattern.compile(recv.getEmail().replace("+", "\\+").replace("%KEY%", "(?<" + keyGroupName + ">.+?)"));
         listeners = new ArrayList<>();
+
+        // Everything needed to route a message, retrieved in bulk. Bodies are only downloaded for messages with a key
+        fetchProfile = new FetchProfile();
+        fetchProfile.add(FetchProfile.Item.ENVELOPE);
+        fetchProfile.add(FetchProfile.Item.FLAGS);
+        fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+        fetchProfile.add("User-Agent"); // Used to detect the e-mail client of the sender
+    }
+
+    // Not getAllRecipients(), which also reads the Newsgroups header, missing from the envelope
+    private List<Address> getRecipients(Message message) throws MessagingException {
+        List<Address> recipients = new ArrayList<>();
+        for (Message.RecipientType type : new Message.RecipientType[]{Message.RecipientType.TO, Message.RecipientType.CC, Message.RecipientType.BCC}) {
+            Address[] addresses = message.getRecipients(type);
+            if (addresses != null) {
+                recipients.addAll(Arrays.asList(addresses));
+            }
+        }
+        return recipients;
     }
 
     private void doConnect() {
@@ -77,6 +112,7 @@ public class EmailFetcher implements _EmailFetcher, InitializingBean {
             if (folder == null) {
                 folder = store.getFolder("inbox");
                 folder.open(Folder.READ_WRITE);
+                loadCheckpoint();
             }
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -103,54 +139,210 @@ public class EmailFetcher implements _EmailFetcher, InitializingBean {
         }
     }
 
+    private String getCheckpointId() {
+        return recv.getType() + "://" + recv.getLogin() + "@" + recv.getHost() + ":" + recv.getPort() + "/" + folder.getFullName();
+    }
+
+    private void loadCheckpoint() throws MessagingException {
+        checkpoint = null;
+
+        if (!(folder instanceof UIDFolder)) {
+            log.info("E-mail folder does not support UIDs, the whole folder will be scanned on each check");
+            return;
+        }
+
+        String id = getCheckpointId();
+        long uidValidity = ((UIDFolder) folder).getUIDValidity();
+        checkpoint = checkpointStore.get(id).filter(cp -> cp.getUidValidity() == uidValidity).orElseGet(() -> {
+            log.info("No valid checkpoint for {}, starting from the first message", id);
+
+            EmailCheckpointDao cp = new EmailCheckpointDao();
+            cp.setId(id);
+            cp.setUidValidity(uidValidity);
+            cp.setLastUid(0);
+            return cp;
+        });
+
+        log.info("Fetching e-mails from {} after UID {}", id, checkpoint.getLastUid());
+    }
+
+    private boolean canIdle() {
+        if (!recv.isIdle()) {
+            return false;
+        }
+
+        if (!(store instanceof IMAPStore) || !(folder instanceof IMAPFolder)) {
+            log.warn("IDLE mode is only available with IMAP, falling back to polling");
+            return false;
+        }
+
+        try {
+            if (!((IMAPStore) store).hasCapability("IDLE")) {
+                log.warn("E-mail server does not support IDLE, falling back to polling");
+                return false;
+            }
+
+            return true;
+        } catch (MessagingException e) {
+            log.warn("Unable to check for IDLE support, falling back to polling: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    // Any command issued on the folder from another thread makes the server leave IDLE, which keeps the connection alive
+    private void wakeUp() {
+        Folder f = folder;
+        if (f == null || !f.isOpen()) {
+            return;
+        }
+
+        try {
+            f.getMessageCount();
+        } catch (MessagingException e) {
+            log.debug("Unable to wake up e-mail receiver: {}", e.getMessage());
+        }
+    }
+
+    private int fetch() throws MessagingException, InterruptedException {
+        int count = 0;
+
+        Message[] messages;
+        long lastUid = 0;
+        if (checkpoint != null) {
+            lastUid = checkpoint.getLastUid();
+            messages = ((UIDFolder) folder).getMessagesByUID(lastUid + 1, UIDFolder.LASTUID);
+        } else {
+            messages = folder.getMessages();
+        }
+
+        if (messages.length == 0) {
+            return 0;
+        }
+
+        folder.fetch(messages, fetchProfile);
+
+        List<Message> handedOff = new ArrayList<>();
+        List<CompletableFuture<Void>> handOffs = new ArrayList<>();
+
+        for (Message message : messages) {
+            if (checkpoint != null) {
+                long uid = ((UIDFolder) folder).getUID(message);
+                if (uid <= checkpoint.getLastUid()) {
+                    // A n:* range always contains the last message of the folder, even if its UID is lower than n
+                    continue;
+                }
+
+                lastUid = Math.max(lastUid, uid);
+            }
+
+            if (message.isExpunged() || message.getFlags().contains(Flags.Flag.DELETED)) {
+                continue;
+            }
+
+            boolean pushed = false;
+
+            Address[] from = message.getFrom();
+            if (from != null && from.length > 0) {
+                for (Address recipient : getRecipients(message)) {
+                    if (!(recipient instanceof InternetAddress)) {
+                        continue;
+                    }
+
+                    Matcher m = recvPattern.matcher(((InternetAddress) recipient).getAddress());
+                    if (m.matches()) {
+                        String key = m.group(keyGroupName);
+                        log.info("Got email with key {}", key);
+
+                        List<CompletableFuture<Void>> pushes = new ArrayList<>();
+                        for (_EmailMessageListener listener : listeners) {
+                            pushes.add(listener.push(key, message));
+                        }
+
+                        handedOff.add(message);
+                        handOffs.add(CompletableFuture.allOf(pushes.toArray(new CompletableFuture[0])));
+                        pushed = true;
+                        break;
+                    }
+                }
+            } else {
+                log.info("Received unsupported email: no sender");
+            }
+
+            if (!pushed) {
+                message.setFlag(Flags.Flag.DELETED, true);
+                count++;
+            }
+        }
+
+        // E-mails handed off are only deleted, and the checkpoint moved past them, once processed. If interrupted while
+        // waiting, the ones not processed yet are kept and received again on next start.
+        for (int i = 0; i < handedOff.size(); i++) {
+            Message message = handedOff.get(i);
+            try {
+                handOffs.get(i).get();
+                message.setFlag(Flags.Flag.DELETED, true);
+                count++;
+            } catch (ExecutionException e) {
+                if (checkpoint != null) {
+                    lastUid = Math.min(lastUid, ((UIDFolder) folder).getUID(message) - 1);
+                }
+            }
+        }
+
+        if (count > 0) {
+            folder.expunge();
+        }
+
+        if (checkpoint != null && lastUid > checkpoint.getLastUid()) {
+            checkpoint.setLastUid(lastUid);
+            checkpointStore.store(checkpoint);
+        }
+
+        return count;
+    }
+
+    private void receive() throws MessagingException, InterruptedException {
+        boolean idle = canIdle();
+        log.info("Receiving e-mails using {}", idle ? "IDLE" : "polling");
+
+        long wait = recv.getPollInterval();
+        while (store.isConnected() && !Thread.currentThread().isInterrupted()) {
+            int count = fetch();
+
+            if (idle) {
+                ((IMAPFolder) folder).idle(true);
+            } else {
+                // Adaptive polling: back off while the mailbox is quiet, go back to the shortest interval on new mail
+                wait = count > 0 ? recv.getPollInterval() : Math.min(wait * 2, recv.getPollIntervalMax());
+                Thread.sleep(wait);
+            }
+        }
+    }
+
     @Override
     public void connect() {
         log.info("Connect: start");
         try {
             doConnect();
 
+            idleKeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r);
+                t.setName("email-receiver-idle-keeper");
+                t.setDaemon(true);
+                return t;
+            });
+            idleKeeper.scheduleWithFixedDelay(this::wakeUp, recv.getIdleRefresh(), recv.getIdleRefresh(), TimeUnit.MILLISECONDS);
+
             runner = new Thread(() -> {
                 log.info("Email receiver thread: start");
 
-                while (!Thread.interrupted()) {
+                while (!Thread.currentThread().isInterrupted()) {
                     try {
                         doConnect();
-                        while (store.isConnected()) {
-                            Thread.sleep(sleepTime);
-
-                            Message[] messages = folder.getMessages();
-                            for (Message message : messages) {
-                                if (message.isExpunged() || message.getFlags().contains(Flags.Flag.DELETED)) {
-                                    continue;
-                                }
-
-                                if (message.getFrom().length > 0) {
-                                    Address[] recipients = message.getAllRecipients();
-                                    for (Address recipient : recipients) {
-                                        InternetAddress address = (InternetAddress) recipient;
-                                        Matcher m = recvPattern.matcher(address.getAddress());
-                                        if (m.matches()) {
-                                            String key = m.group(keyGroupName);
-                                            log.info("Got email with key {}", key);
-
-                                            for (_EmailMessageListener listener : listeners) {
-                                                listener.push(key, message);
-                                            }
-
-                                            break;
-                                        }
-                                    }
-                                } else {
-                                    log.info("Received unsupported email: no sender");
-                                }
-
-                                message.setFlag(Flags.Flag.DELETED, true);
-                            }
-
-                            folder.expunge();
-                        }
+                        receive();
                     } catch (InterruptedException e) {
                         log.info("Email receiver thread was interrupted");
+                        Thread.currentThread().interrupt();
                     } catch (MessagingException e) {
                         log.error("Error in e-mail backend: {}", e.getMessage());
                         doDisconnect();
@@ -161,6 +353,7 @@ public class EmailFetcher implements _EmailFetcher, InitializingBean {
                             Thread.sleep(5000);
                         } catch (InterruptedException e) {
                             log.debug("Got interrupted while waiting with error back-off");
+                            Thread.currentThread().interrupt();
                         }
                     }
                 }
@@ -183,10 +376,12 @@ public class EmailFetcher implements _EmailFetcher, InitializingBean {
         log.info("Disconnect: start");
 
         log.info("Disconnect: interrupt receiver daemon");
+        idleKeeper.shutdownNow();
         runner.interrupt();
+        wakeUp();
         try {
             log.info("Disconnect: receiver daemon join: start");
-            runner.join(sleepTime * 5L);
+            runner.join(joinTime);
         } catch (InterruptedException e) {
             e.printStackTrace();
         } finally {
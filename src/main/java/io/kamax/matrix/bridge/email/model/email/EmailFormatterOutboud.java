@@ -21,13 +21,16 @@
 package io.kamax.matrix.bridge.email.model.email;
 
 import io.kamax.matrix.MatrixID;
-import io.kamax.matrix._MatrixContent;
 import io.kamax.matrix._MatrixUser;
 import io.kamax.matrix.bridge.email.config.email.EmailReceiverConfig;
 import io.kamax.matrix.bridge.email.config.email.EmailSenderConfig;
+import io.kamax.matrix.bridge.email.config.email.EmailSenderRenderConfig;
 import io.kamax.matrix.bridge.email.model.BridgeMessageContent;
 import io.kamax.matrix.bridge.email.model.BridgeMessageHtmlContent;
+import io.kamax.matrix.bridge.email.model.ExpiringCache;
 import io.kamax.matrix.bridge.email.model._BridgeMessageContent;
+import io.kamax.matrix.bridge.email.model.matrix.MatrixAvatar;
+import io.kamax.matrix.bridge.email.model.matrix.MatrixProfileCache;
 import io.kamax.matrix.bridge.email.model.matrix._MatrixBridgeMessage;
 import io.kamax.matrix.bridge.email.model.subscription.SubscriptionEvents;
 import io.kamax.matrix.bridge.email.model.subscription.SubscriptionPortalService;
@@ -54,10 +57,10 @@ import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.stream.Collectors;
 
 @Component
 public class EmailFormatterOutboud implements InitializingBean, _EmailFormatterOutbound {
@@ -76,12 +79,19 @@ public class EmailFormatterOutboud implements InitializingBean, _EmailFormatterO
     @Autowired
     private _EmailTemplateManager templateMgr;
 
+    @Autowired
+    private MatrixProfileCache profiles;
+
+    @Autowired
+    private EmailSenderRenderConfig renderCfg;
+
     private Session session = Session.getInstance(System.getProperties());
 
     private DateTimeFormatter hourFormatter = DateTimeFormatter.ofPattern("HH");
     private DateTimeFormatter minFormatter = DateTimeFormatter.ofPattern("mm");
     private DateTimeFormatter secFormatter = DateTimeFormatter.ofPattern("ss");
-    private String senderAvatarId = "sender.avatar@matrix";
+    private String senderAvatarIdDefault = "sender.avatar@matrix";
+    private ExpiringCache<String, FutureTask<RenderedEmail>> renderCache;
 
     @Override
     public void afterPropertiesSet() throws Exception {
@@ -89,6 +99,8 @@ public class EmailFormatterOutboud implements InitializingBean, _EmailFormatterO
             log.error("Configuration error: template list for onMessage notification event cannot be empty");
             System.exit(1);
         }
+
+        renderCache = new ExpiringCache<>(renderCfg.getCacheSize(), renderCfg.getTtl(), false);
     }
 
     private String getSubscriptionManageLink(String token) {
@@ -100,131 +112,134 @@ public class EmailFormatterOutboud implements InitializingBean, _EmailFormatterO
         return "<span>" + text + "</span>";
     }
 
-    private String processToken(TokenData data, String template) {
-        template = StringUtils.replace(template, EmailTemplateToken.ManageUrl.getToken(), data.getManageUrl());
-        template = StringUtils.replace(template, EmailTemplateToken.MsgTimeHour.getToken(), data.getTimeHour());
-        template = StringUtils.replace(template, EmailTemplateToken.MsgTimeMin.getToken(), data.getTimeMin());
-        template = StringUtils.replace(template, EmailTemplateToken.MsgTimeSec.getToken(), data.getTimeSec());
-        template = StringUtils.replace(template, EmailTemplateToken.ReceiverAddress.getToken(), data.getReceiverAddress());
-        template = StringUtils.replace(template, EmailTemplateToken.SenderAddress.getToken(), data.getSenderAddress());
-        template = StringUtils.replace(template, EmailTemplateToken.SenderName.getToken(), data.getSenderName());
-        template = StringUtils.replace(template, EmailTemplateToken.SenderAvatar.getToken(), senderAvatarId);
-        template = StringUtils.replace(template, EmailTemplateToken.Sender.getToken(), data.getSender());
-        template = StringUtils.replace(template, EmailTemplateToken.RoomAddress.getToken(), data.getRoomAddress());
-        template = StringUtils.replace(template, EmailTemplateToken.RoomName.getToken(), data.getRoomName());
-        template = StringUtils.replace(template, EmailTemplateToken.Room.getToken(), data.getRoom());
-
-        return template;
-    }
+    private EmailTemplateText render(TokenData head, _EmailTemplateContent template, List<MessageData> messages) {
+        // Only the content between the block markers is repeated for each message, the rest is rendered once.
+        EmailTemplateText content = template.getContentText();
+        EmailTemplateText block = content.getBlock();
 
-    private String processToken(TokenData data, String template, String content) {
-        return StringUtils.replace(processToken(data, template), EmailTemplateToken.MsgContent.getToken(), content);
-    }
+        EmailTemplateText.Builder builder = new EmailTemplateText.Builder();
+        builder.append(template.getHeaderText(), head::get);
+        builder.append(content.getPrefix(), head::get);
+        for (MessageData message : messages) {
+            String messageContent = message.getContent(template.getType()).map(_BridgeMessageContent::getContentAsString).orElse("");
+            TokenData data = message.getData();
+            builder.append(block, token -> EmailTemplateToken.MsgContent.equals(token) ? messageContent : data.get(token));
+        }
+        builder.append(content.getSuffix(), head::get);
+        builder.append(template.getFooterText(), head::get);
 
-    private MimeBodyPart makeBodyPart(TokenData data, _EmailTemplateContent template, _BridgeMessageContent content) throws IOException, MessagingException {
-        StringBuilder partRaw = new StringBuilder();
+        log.info("Rendered content of type {} for {} message(s)", template.getType(), messages.size());
 
-        String header = processToken(data, template.getHeader());
-        String footer = processToken(data, template.getFooter());
-        String contentString = processToken(data, template.getContent(), content.getContentAsString());
+        return builder.build();
+    }
 
-        partRaw.append(header).append(contentString).append(footer);
+    /**
+     * Render everything that does not depend on the recipient, so it can be shared by all recipients of the messages.
+     */
+    private RenderedEmail render(_EmailTemplate template, List<MessageData> messages) {
+        Set<String> mimes = new LinkedHashSet<>();
+        messages.forEach(m -> m.getContents().forEach(c -> mimes.add(c.getMime())));
+
+        // Each sender avatar is only attached once, shared by all alternatives and all messages of a digest
+        Map<String, EmailTemplateText> parts = new LinkedHashMap<>();
+        Map<String, MatrixAvatar> avatars = new LinkedHashMap<>();
+        for (String mime : mimes) {
+            Optional<_EmailTemplateContent> contentTemplateOpt = template.getContent(mime);
+            if (!contentTemplateOpt.isPresent()) {
+                continue;
+            }
+
+            List<MessageData> mimeMessages = messages.stream()
+                    .filter(m -> m.getContent(mime).isPresent())
+                    .collect(Collectors.toList());
 
-        MimeBodyPart part = new MimeBodyPart();
-        part.setText(partRaw.toString(), StandardCharsets.UTF_8.name(), template.getType().replace("text/", ""));
+            _EmailTemplateContent contentTemplate = contentTemplateOpt.get();
+            parts.put(contentTemplate.getType(), render(mimeMessages.get(0).getData(), contentTemplate, mimeMessages));
+
+            if (contentTemplate.getContentText().contains(EmailTemplateToken.SenderAvatar)) {
+                for (MessageData m : mimeMessages) {
+                    MatrixAvatar avatar = m.getData().getSenderAvatar();
+                    if (avatar != null) {
+                        avatars.putIfAbsent(m.getData().getSenderAvatarId(), avatar);
+                    }
+                }
+            }
+        }
 
-        log.info("Created body part of type {}", template.getType());
+        TokenData head = messages.get(0).getData();
+        boolean singleSender = messages.stream()
+                .allMatch(m -> StringUtils.equals(head.getSenderAddress(), m.getData().getSenderAddress()));
 
-        return part;
+        return new RenderedEmail(template.getSubjectText().bind(head::get), parts, avatars, head.getSenderName(), singleSender);
     }
 
-    private MimeMessage makeEmail(TokenData data, _EmailTemplate template, MimeMultipart body, boolean allowReply) throws MessagingException, UnsupportedEncodingException {
-        MimeMessage msg = new MimeMessage(session);
-        if (allowReply) {
-            msg.setReplyTo(InternetAddress.parse(recvCfg.getEmail().replace("%KEY%", data.getKey())));
-        }
+    private MimeBodyPart makeAvatarPart(String avatarId, MatrixAvatar avatar) throws MessagingException {
+        MimeBodyPart avatarBp = new MimeBodyPart();
+        avatarBp.setContent(avatar.getData(), avatar.getType());
+        avatarBp.setContentID("<" + avatarId + ">");
+        avatarBp.setDisposition("inline; filename=\"" + avatar.getFilename() + "\"; size=" + avatar.getData().length + ";");
 
-        String sender = data.isSelf() ? sendCfg.getName() : data.getSenderName();
-        msg.setFrom(new InternetAddress(sendCfg.getEmail(), sender, StandardCharsets.UTF_8.name()));
-        msg.setSubject(processToken(data, template.getSubject()));
-        msg.setContent(body);
-        return msg;
+        return avatarBp;
     }
 
-    private MimeMessage makeEmail(TokenData data, _EmailTemplate template, List<_BridgeMessageContent> contents, boolean allowReply) throws MessagingException, IOException {
+    /**
+     * Fill in the recipient specific parts of a rendered e-mail.
+     */
+    private MimeMessage makeEmail(RenderedEmail rendered, Recipient recipient) throws MessagingException, UnsupportedEncodingException {
         MimeMultipart body = new MimeMultipart();
         body.setSubType("alternative");
 
-        for (_BridgeMessageContent content : contents) {
-            MimeMultipart contentBody = new MimeMultipart();
-            contentBody.setSubType("related");
+        for (Map.Entry<String, EmailTemplateText> part : rendered.getParts().entrySet()) {
+            MimeBodyPart bodyPart = new MimeBodyPart();
+            bodyPart.setText(part.getValue().render(recipient::get), StandardCharsets.UTF_8.name(), part.getKey().replace("text/", ""));
+            body.addBodyPart(bodyPart);
+        }
 
-            Optional<_EmailTemplateContent> contentTemplateOpt = template.getContent(content.getMime());
-            if (!contentTemplateOpt.isPresent()) {
-                continue;
-            }
+        if (!rendered.getAvatars().isEmpty()) {
+            MimeBodyPart alternatives = new MimeBodyPart();
+            alternatives.setContent(body);
 
-            _EmailTemplateContent contentTemplate = contentTemplateOpt.get();
-            contentBody.addBodyPart(makeBodyPart(data, contentTemplate, content));
+            body = new MimeMultipart();
+            body.setSubType("related");
+            body.addBodyPart(alternatives);
 
-            if (contentTemplate.getContent().contains(EmailTemplateToken.SenderAvatar.getToken()) &&
-                    data.getSenderAvatar() != null && data.getSenderAvatar().isValid()) {
+            for (Map.Entry<String, MatrixAvatar> avatar : rendered.getAvatars().entrySet()) {
                 log.info("Adding avatar for sender");
-
-                MimeBodyPart avatarBp = new MimeBodyPart();
-                _MatrixContent avatar = data.getSenderAvatar();
-                String filename = avatar.getFilename()
-                        .map(f -> f.replace("image/", "").replace("\"", ""))
-                        .filter(StringUtils::isNotBlank)
-                        .orElseGet(() -> "unknown." + avatar.getType());
-
-                avatarBp.setContent(avatar.getData(), avatar.getType());
-                avatarBp.setContentID("<" + senderAvatarId + ">");
-                avatarBp.setDisposition("inline; filename=\"" + filename + "\"; size=" + avatar.getData().length + ";");
-
-                contentBody.addBodyPart(avatarBp);
+                body.addBodyPart(makeAvatarPart(avatar.getKey(), avatar.getValue()));
             }
+        }
 
-            MimeBodyPart part = new MimeBodyPart();
-            part.setContent(contentBody);
+        // An e-mail with several senders is sent on behalf of the bridge
+        String fromName = recipient.isSelf() || !rendered.isSingleSender() ? sendCfg.getName() : rendered.getSenderName();
 
-            body.addBodyPart(part);
+        MimeMessage msg = new MimeMessage(session);
+        if (recipient.isAllowReply()) {
+            msg.setReplyTo(InternetAddress.parse(recvCfg.getEmail().replace("%KEY%", recipient.getKey())));
         }
 
-        return makeEmail(data, template, body, allowReply);
+        msg.setFrom(new InternetAddress(sendCfg.getEmail(), fromName, StandardCharsets.UTF_8.name()));
+        msg.setSubject(rendered.getSubject().render(recipient::get));
+        msg.setContent(body);
+        return msg;
     }
 
-    private MimeMessage makeEmail(TokenData data, _EmailTemplate template, boolean allowReply) throws IOException, MessagingException {
+    private MimeMessage makeEmail(TokenData data, _EmailTemplate template, Recipient recipient) throws IOException, MessagingException {
         List<_BridgeMessageContent> contents = Arrays.asList(
                 new BridgeMessageContent(MimeTypeUtils.TEXT_PLAIN_VALUE),
                 new BridgeMessageContent(MimeTypeUtils.TEXT_HTML_VALUE)
         );
 
-        return makeEmail(data, template, contents, allowReply);
+        return makeEmail(render(template, Collections.singletonList(new MessageData(data, contents))), recipient);
     }
 
-    @Override
-    public Optional<MimeMessage> get(_BridgeSubscription sub, _MatrixBridgeMessage msg) throws IOException, MessagingException {
-        Optional<_EmailTemplate> templateOpt = templateMgr.get(SubscriptionEvents.OnMessage);
-        if (!templateOpt.isPresent()) {
-            log.info("Ignoring message event {} to {}, no notification set", msg.getKey(), sub.getEmailEndpoint().getIdentity());
-            return Optional.empty();
-        }
-
-        _EmailTemplate template = templateOpt.get();
-        List<_EmailTemplateContent> templates = template.listContents();
-        if (templates.isEmpty()) {
-            log.info("No template configured for subscription event {}, skipping");
-            return Optional.empty();
-        }
-
+    private Optional<List<_BridgeMessageContent>> getContents(String roomId, _MatrixBridgeMessage msg) {
         Optional<_BridgeMessageContent> txtOpt = msg.getContent(MimeTypeUtils.TEXT_PLAIN_VALUE);
         Optional<_BridgeMessageContent> htmlOpt = msg.getContent(MimeTypeUtils.TEXT_HTML_VALUE);
 
         List<_BridgeMessageContent> contents = new ArrayList<>();
         if (!txtOpt.isPresent()) {
             if (!htmlOpt.isPresent()) {
-                log.warn("Ignoring Matrix message {} to {}, no valid content", msg.getKey(), sub.getEmailEndpoint().getIdentity());
+                log.warn("Ignoring Matrix message {} in {}, no valid content", msg.getKey(), roomId);
                 return Optional.empty();
             }
 
@@ -238,27 +253,98 @@ public class EmailFormatterOutboud implements InitializingBean, _EmailFormatterO
             }
         }
 
-        // TODO refactor with duplicated code within get()
+        return Optional.of(contents);
+    }
+
+    private RenderedEmail render(_EmailTemplate template, _MatrixClient mxClient, String roomAddress, List<_MatrixBridgeMessage> msgs) {
+        String roomName = profiles.getRoomName(mxClient, roomAddress);
+
+        Map<String, String> avatarIds = new HashMap<>();
+        List<MessageData> messages = new ArrayList<>();
+        for (_MatrixBridgeMessage msg : msgs) {
+            Optional<List<_BridgeMessageContent>> contents = getContents(roomAddress, msg);
+            if (!contents.isPresent()) {
+                continue;
+            }
+
+            _MatrixUser userSource = msg.getSender();
+            String senderAddress = userSource.getId().getId();
+            Optional<MatrixAvatar> userAvatar = profiles.getAvatar(userSource);
+            LocalDateTime ldt = LocalDateTime.ofInstant(msg.getTime(), ZoneOffset.systemDefault());
+            TokenData tokenData = new TokenData();
+            tokenData.setTimeHour(ldt.format(hourFormatter));
+            tokenData.setTimeMin(ldt.format(minFormatter));
+            tokenData.setTimeSec(ldt.format(secFormatter));
+            tokenData.setSenderAddress(senderAddress);
+            tokenData.setSenderName(profiles.getUserName(userSource));
+            userAvatar.ifPresent(tokenData::setSenderAvatar);
+            tokenData.setSenderAvatarId(avatarIds.computeIfAbsent(senderAddress, id -> "sender" + avatarIds.size() + ".avatar@matrix"));
+            tokenData.setSender(StringUtils.defaultIfBlank(tokenData.getSenderName(), tokenData.getSenderAddress()));
+            tokenData.setRoomAddress(roomAddress);
+            tokenData.setRoomName(roomName);
+            tokenData.setRoom(StringUtils.defaultIfBlank(tokenData.getRoomName(), tokenData.getRoomAddress()));
+
+            messages.add(new MessageData(tokenData, contents.get()));
+        }
+
+        if (messages.isEmpty()) {
+            return null;
+        }
+
+        return render(template, messages);
+    }
+
+    @Override
+    public Optional<MimeMessage> get(_BridgeSubscription sub, _MatrixBridgeMessage msg) throws IOException, MessagingException {
+        return get(sub, Collections.singletonList(msg));
+    }
+
+    @Override
+    public Optional<MimeMessage> get(_BridgeSubscription sub, List<_MatrixBridgeMessage> msgs) throws IOException, MessagingException {
+        Optional<_EmailTemplate> templateOpt = templateMgr.get(SubscriptionEvents.OnMessage);
+        if (!templateOpt.isPresent()) {
+            log.info("Ignoring {} message event(s) to {}, no notification set", msgs.size(), sub.getEmailEndpoint().getIdentity());
+            return Optional.empty();
+        }
+
+        _EmailTemplate template = templateOpt.get();
+        List<_EmailTemplateContent> templates = template.listContents();
+        if (templates.isEmpty()) {
+            log.info("No template configured for subscription event {}, skipping");
+            return Optional.empty();
+        }
+
+        // The same messages are sent to every e-mail user of the room, only the first one renders them
         _MatrixClient mxClient = sub.getMatrixEndpoint().getClient();
-        _MatrixUser userSource = msg.getSender();
-        Optional<_MatrixContent> userAvatar = userSource.getAvatarThumbnail(48, 48);
-        LocalDateTime ldt = LocalDateTime.ofInstant(msg.getTime(), ZoneOffset.systemDefault());
-        TokenData tokenData = new TokenData(sub.getEmailEndpoint().getChannelId());
-        tokenData.setManageUrl(getSubscriptionManageLink(sub.getEmailEndpoint().getChannelId()));
-        tokenData.setTimeHour(ldt.format(hourFormatter));
-        tokenData.setTimeMin(ldt.format(minFormatter));
-        tokenData.setTimeSec(ldt.format(secFormatter));
-        tokenData.setSenderAddress(userSource.getId().getId());
-        tokenData.setSenderName(userSource.getName().orElse(""));
-        userAvatar.ifPresent(tokenData::setSenderAvatar);
-        tokenData.setSender(StringUtils.defaultIfBlank(tokenData.getSenderName(), tokenData.getSenderAddress()));
-        tokenData.setReceiverAddress(sub.getEmailEndpoint().getIdentity());
-        tokenData.setRoomAddress(sub.getMatrixEndpoint().getChannelId());
-        tokenData.setRoomName(mxClient.getRoom(tokenData.getRoomAddress()).getName().orElse(""));
-        tokenData.setRoom(StringUtils.defaultIfBlank(tokenData.getRoomName(), tokenData.getRoomAddress()));
-        tokenData.setSelf(sub.getMatrixEndpoint().getClient().getUser().equals(msg.getSender()));
+        String roomAddress = sub.getMatrixEndpoint().getChannelId();
+        String renderKey = roomAddress + "\n" + msgs.stream().map(_MatrixBridgeMessage::getKey).collect(Collectors.joining("\n"));
+        FutureTask<RenderedEmail> task = new FutureTask<>(() -> render(template, mxClient, roomAddress, msgs));
+        FutureTask<RenderedEmail> shared = renderCache.putIfAbsent(renderKey, task).orElse(task);
+        if (shared == task) {
+            task.run();
+        }
+
+        RenderedEmail rendered;
+        try {
+            rendered = shared.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while rendering messages for " + roomAddress, e);
+        } catch (ExecutionException e) {
+            renderCache.invalidate(renderKey);
+            throw new MessagingException("Unable to render messages for " + roomAddress, e);
+        }
+
+        if (rendered == null) {
+            return Optional.empty();
+        }
+
+        String key = sub.getEmailEndpoint().getChannelId();
+        Recipient recipient = new Recipient(key, getSubscriptionManageLink(key), sub.getEmailEndpoint().getIdentity());
+        recipient.setSelf(mxClient.getUser().equals(msgs.get(0).getSender()));
+        recipient.setAllowReply(true);
 
-        return Optional.of(makeEmail(tokenData, template, contents, true));
+        return Optional.of(makeEmail(rendered, recipient));
     }
 
     @Override
@@ -278,59 +364,162 @@ public class EmailFormatterOutboud implements InitializingBean, _EmailFormatterO
 
         _MatrixClient mxClient = ev.getSubscription().getMatrixEndpoint().getClient();
         _MatrixUser userSource = mxClient.getUser(new MatrixID(ev.getInitiator()));
-        Optional<_MatrixContent> userAvatar = userSource.getAvatarThumbnail(48, 48);
+        Optional<MatrixAvatar> userAvatar = profiles.getAvatar(userSource);
         LocalDateTime ldt = LocalDateTime.ofInstant(ev.getTime(), ZoneOffset.systemDefault());
-        TokenData tokenData = new TokenData(ev.getSubscription().getEmailEndpoint().getChannelId());
-        tokenData.setManageUrl(getSubscriptionManageLink(ev.getSubscription().getEmailEndpoint().getChannelId()));
+        TokenData tokenData = new TokenData();
         tokenData.setTimeHour(ldt.format(hourFormatter));
         tokenData.setTimeMin(ldt.format(minFormatter));
         tokenData.setTimeSec(ldt.format(secFormatter));
         tokenData.setSenderAddress(userSource.getId().getId());
-        tokenData.setSenderName(userSource.getName().orElse(""));
+        tokenData.setSenderName(profiles.getUserName(userSource));
         userAvatar.ifPresent(tokenData::setSenderAvatar);
         tokenData.setSender(StringUtils.defaultIfBlank(tokenData.getSenderName(), tokenData.getSenderAddress()));
-        tokenData.setReceiverAddress(ev.getSubscription().getEmailEndpoint().getIdentity());
         tokenData.setRoomAddress(ev.getSubscription().getMatrixEndpoint().getChannelId());
-        tokenData.setRoomName(mxClient.getRoom(tokenData.getRoomAddress()).getName().orElse(""));
+        tokenData.setRoomName(profiles.getRoomName(mxClient, tokenData.getRoomAddress()));
         tokenData.setRoom(StringUtils.defaultIfBlank(tokenData.getRoomName(), tokenData.getRoomAddress()));
-        tokenData.setSelf(StringUtils.equalsIgnoreCase(ev.getInitiator(), ev.getSubscription().getMatrixEndpoint().getClient().getUser().getId()));
+
+        String key = ev.getSubscription().getEmailEndpoint().getChannelId();
+        Recipient recipient = new Recipient(key, getSubscriptionManageLink(key), ev.getSubscription().getEmailEndpoint().getIdentity());
+        recipient.setSelf(StringUtils.equalsIgnoreCase(ev.getInitiator(), ev.getSubscription().getMatrixEndpoint().getClient().getUser().getId()));
 
         switch (ev.getType()) {
             case OnCreate:
-                return Optional.of(makeEmail(tokenData, template, true));
+                recipient.setAllowReply(true);
+                return Optional.of(makeEmail(tokenData, template, recipient));
             case OnDestroy:
-                return Optional.of(makeEmail(tokenData, template, false));
+                return Optional.of(makeEmail(tokenData, template, recipient));
             default:
                 log.warn("Unknown subscription event type {}, using default behaviour", ev.getType().getId());
-                return Optional.of(makeEmail(tokenData, template, false));
+                return Optional.of(makeEmail(tokenData, template, recipient));
         }
     }
 
-    private class TokenData {
+    /**
+     * An e-mail rendered for all recipients, where only the recipient tokens are left.
+     */
+    private class RenderedEmail {
 
-        private String key;
-        private String timeHour;
-        private String timeMin;
-        private String timeSec;
-        private String sender;
+        private EmailTemplateText subject;
+        private Map<String, EmailTemplateText> parts;
+        private Map<String, MatrixAvatar> avatars;
         private String senderName;
-        private String senderAddress;
-        private _MatrixContent senderAvatar;
-        private String receiverAddress;
-        private String room;
-        private String roomName;
-        private String roomAddress;
+        private boolean singleSender;
+
+        RenderedEmail(EmailTemplateText subject, Map<String, EmailTemplateText> parts, Map<String, MatrixAvatar> avatars, String senderName, boolean singleSender) {
+            this.subject = subject;
+            this.parts = parts;
+            this.avatars = avatars;
+            this.senderName = senderName;
+            this.singleSender = singleSender;
+        }
+
+        EmailTemplateText getSubject() {
+            return subject;
+        }
+
+        Map<String, EmailTemplateText> getParts() {
+            return parts;
+        }
+
+        Map<String, MatrixAvatar> getAvatars() {
+            return avatars;
+        }
+
+        String getSenderName() {
+            return senderName;
+        }
+
+        boolean isSingleSender() {
+            return singleSender;
+        }
+
+    }
+
+    private class Recipient {
+
+        private String key;
         private String manageUrl;
+        private String address;
         private boolean isSelf;
+        private boolean allowReply;
 
-        TokenData(String key) {
+        Recipient(String key, String manageUrl, String address) {
             this.key = key;
+            this.manageUrl = manageUrl;
+            this.address = address;
         }
 
         String getKey() {
             return key;
         }
 
+        boolean isSelf() {
+            return isSelf;
+        }
+
+        void setSelf(boolean self) {
+            isSelf = self;
+        }
+
+        boolean isAllowReply() {
+            return allowReply;
+        }
+
+        void setAllowReply(boolean allowReply) {
+            this.allowReply = allowReply;
+        }
+
+        String get(EmailTemplateToken token) {
+            switch (token) {
+                case ManageUrl:
+                    return manageUrl;
+                case ReceiverAddress:
+                    return address;
+                default:
+                    return null;
+            }
+        }
+
+    }
+
+    private class MessageData {
+
+        private TokenData data;
+        private List<_BridgeMessageContent> contents;
+
+        MessageData(TokenData data, List<_BridgeMessageContent> contents) {
+            this.data = data;
+            this.contents = contents;
+        }
+
+        TokenData getData() {
+            return data;
+        }
+
+        List<_BridgeMessageContent> getContents() {
+            return contents;
+        }
+
+        Optional<_BridgeMessageContent> getContent(String mime) {
+            return contents.stream().filter(c -> StringUtils.equals(mime, c.getMime())).findFirst();
+        }
+
+    }
+
+    private class TokenData {
+
+        private String timeHour;
+        private String timeMin;
+        private String timeSec;
+        private String sender;
+        private String senderName;
+        private String senderAddress;
+        private MatrixAvatar senderAvatar;
+        private String senderAvatarId = senderAvatarIdDefault;
+        private String room;
+        private String roomName;
+        private String roomAddress;
+
         String getTimeHour() {
             return timeHour;
         }
@@ -379,20 +568,20 @@ public class EmailFormatterOutboud implements InitializingBean, _EmailFormatterO
             this.senderAddress = senderAddress;
         }
 
-        _MatrixContent getSenderAvatar() {
+        MatrixAvatar getSenderAvatar() {
             return senderAvatar;
         }
 
-        void setSenderAvatar(_MatrixContent senderAvatar) {
+        void setSenderAvatar(MatrixAvatar senderAvatar) {
             this.senderAvatar = senderAvatar;
         }
 
-        String getReceiverAddress() {
-            return receiverAddress;
+        String getSenderAvatarId() {
+            return senderAvatarId;
         }
 
-        void setReceiverAddress(String receiverAddress) {
-            this.receiverAddress = receiverAddress;
+        void setSenderAvatarId(String senderAvatarId) {
+            this.senderAvatarId = senderAvatarId;
         }
 
         String getRoom() {
@@ -419,21 +608,36 @@ public class EmailFormatterOutboud implements InitializingBean, _EmailFormatterO
             this.roomAddress = roomAddress;
         }
 
-        String getManageUrl() {
-            return manageUrl;
-        }
-
-        void setManageUrl(String manageUrl) {
-            this.manageUrl = manageUrl;
-        }
-
-        public boolean isSelf() {
-            return isSelf;
+        /**
+         * @return The value of the token, or null if it is not one of the message tokens or depends on the recipient
+         */
+        String get(EmailTemplateToken token) {
+            switch (token) {
+                case MsgTimeHour:
+                    return getTimeHour();
+                case MsgTimeMin:
+                    return getTimeMin();
+                case MsgTimeSec:
+                    return getTimeSec();
+                case SenderAddress:
+                    return getSenderAddress();
+                case SenderName:
+                    return getSenderName();
+                case SenderAvatar:
+                    return getSenderAvatarId();
+                case Sender:
+                    return getSender();
+                case RoomAddress:
+                    return getRoomAddress();
+                case RoomName:
+                    return getRoomName();
+                case Room:
+                    return getRoom();
+                default:
+                    return null;
+            }
         }
 
-        public void setSelf(boolean self) {
-            isSelf = self;
-        }
     }
 
 }
@@ -20,25 +20,45 @@
 
 package io.kamax.matrix.bridge.email.model.email;
 
-import io.kamax.matrix.bridge.email.config.email.EmailSenderConfig;
+import io.kamax.matrix.bridge.email.config.email.EmailPipelineConfig;
+import io.kamax.matrix.bridge.email.model.BoundedExecutors;
+import io.kamax.matrix.bridge.email.model.OrderedExecutor;
 import io.kamax.matrix.bridge.email.model._EndPoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.util.HashMap;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 @Component
-public class EmailManager implements InitializingBean, _EmailManager {
+public class EmailManager implements InitializingBean, DisposableBean, _EmailManager {
 
     private Logger log = LoggerFactory.getLogger(EmailManager.class);
 
+    private final long drainTime = 30000L;
+
+    @Autowired
+    private EmailSendQueue sendQueue;
+
+    @Autowired
+    private EmailDigestScheduler digests;
+
     @Autowired
-    private EmailSenderConfig sendCfg;
+    private EmailPipelineConfig pipelineCfg;
 
     @Autowired
     private _EmailFormatterOutbound formatOut;
@@ -49,41 +69,95 @@ public class EmailManager implements InitializingBean, _EmailManager {
     @Autowired
     private _EmailFetcher fetcher;
 
-    private Map<String, EmailEndPoint> endpoints = new HashMap<>();
+    // Endpoints are held by their subscription, we only keep them while in use so the same instance is always returned
+    private Map<String, EndPointRef> endpoints = new ConcurrentHashMap<>();
+    private ReferenceQueue<EmailEndPoint> endpointsCollected = new ReferenceQueue<>();
+    private Consumer<String> endpointLoader = key -> {
+    };
+
+    private ExecutorService parsers;
+    private OrderedExecutor deliveries;
+
+    private static class EndPointRef extends WeakReference<EmailEndPoint> {
+
+        private String key;
+
+        EndPointRef(String key, EmailEndPoint ep, ReferenceQueue<EmailEndPoint> queue) {
+            super(ep, queue);
+            this.key = key;
+        }
+
+    }
 
     @Override
     public void afterPropertiesSet() throws Exception {
+        parsers = BoundedExecutors.create("email-parser", pipelineCfg.getParseThreads(), pipelineCfg.getParseQueue());
+        deliveries = new OrderedExecutor("email-delivery", pipelineCfg.getDeliveryThreads(), pipelineCfg.getDeliveryQueue());
+
         fetcher.addListener((key, email) -> {
-            Optional<_EmailBridgeMessage> msgOpt = formatIn.get(key, email);
-            if (!msgOpt.isPresent()) {
-                log.info("Inbound formatter did not return anything, skipping");
-                return;
+            try {
+                // The e-mail is only readable while the receiver is on it, so we work on an in-memory copy
+                MimeMessage copy = new MimeMessage((MimeMessage) email);
+
+                // Parsing is done in parallel, but e-mails are delivered in the order they were received for a given key.
+                // The receiver keeps the e-mail in the mailbox until delivered, and to try again if it failed.
+                CompletableFuture<Optional<_EmailBridgeMessage>> parsed = CompletableFuture.supplyAsync(() -> formatIn.get(key, copy), parsers);
+                return deliveries.submit(key, () -> deliver(key, parsed.join())).whenComplete((v, t) -> {
+                    if (t != null) {
+                        log.error("Unable to process e-mail with key {}, keeping it to try again", key, t);
+                    }
+                });
+            } catch (MessagingException | RuntimeException e) {
+                log.error("Unable to read e-mail with key {}, keeping it to try again", key, e);
+
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
             }
-            _EmailBridgeMessage msg = msgOpt.get();
+        });
 
-            EmailEndPoint ep = endpoints.get(key);
-            if (ep == null) {
-                // TODO implement
-                log.warn("DROP: Received e-mail with invalid key {} from {}", msg.getKey(), msg.getSender());
-                return;
-            }
+        fetcher.connect();
+    }
 
-            if (!ep.getIdentity().contentEquals(msg.getSender())) {
-                log.warn("DROP: Received e-mail with invalid sender: from {} but supposed to be {}", msg.getSender(), ep.getIdentity());
-            }
+    @Override
+    public void destroy() throws Exception {
+        // No new e-mails, the ones not yet delivered stay in the mailbox for the next start
+        fetcher.disconnect();
+
+        parsers.shutdown();
+        deliveries.shutdown();
+        if (!parsers.awaitTermination(drainTime, TimeUnit.MILLISECONDS) || !deliveries.awaitTermination(drainTime, TimeUnit.MILLISECONDS)) {
+            log.warn("E-mails were still being delivered after {} ms, they will be received again on next start", drainTime);
+        }
+    }
 
-            log.info("Injecting e-mail from {} with key {}", msg.getSender(), msg.getKey());
-            ep.inject(msg);
-        });
+    private void deliver(String key, Optional<_EmailBridgeMessage> msgOpt) {
+        if (!msgOpt.isPresent()) {
+            log.info("Inbound formatter did not return anything, skipping");
+            return;
+        }
+        _EmailBridgeMessage msg = msgOpt.get();
+
+        endpointLoader.accept(key);
+        EmailEndPoint ep = findEndpoint(key);
+        if (ep == null) {
+            // TODO implement
+            log.warn("DROP: Received e-mail with invalid key {} from {}", msg.getKey(), msg.getSender());
+            return;
+        }
 
-        fetcher.connect();
+        if (!ep.getIdentity().contentEquals(msg.getSender())) {
+            log.warn("DROP: Received e-mail with invalid sender: from {} but supposed to be {}", msg.getSender(), ep.getIdentity());
+        }
+
+        log.info("Injecting e-mail from {} with key {}", msg.getSender(), msg.getKey());
+        ep.inject(msg);
     }
 
     private EmailEndPoint createEndpoint(String email, String threadId) {
         String id = getKey(email, threadId);
-        EmailEndPoint ep = new EmailEndPoint(id, email, threadId, sendCfg, formatOut);
+        EmailEndPoint ep = new EmailEndPoint(id, email, threadId, sendQueue, digests, formatOut);
         ep.addStateListener(this::destroyEndpoint);
-        endpoints.put(id, ep);
 
         log.info("Created new email endpoint {} for {}", id, email);
 
@@ -91,7 +165,21 @@ public class EmailManager implements InitializingBean, _EmailManager {
     }
 
     private void destroyEndpoint(_EndPoint endpoint) {
-        endpoints.remove(endpoint.getId());
+        endpoints.computeIfPresent(endpoint.getId(), (k, ref) -> ref.get() == endpoint ? null : ref);
+    }
+
+    private void removeCollectedEndpoints() {
+        Reference<? extends EmailEndPoint> ref;
+        while ((ref = endpointsCollected.poll()) != null) {
+            endpoints.remove(((EndPointRef) ref).key, ref);
+        }
+    }
+
+    private EmailEndPoint findEndpoint(String key) {
+        removeCollectedEndpoints();
+
+        EndPointRef ref = endpoints.get(key);
+        return ref == null ? null : ref.get();
     }
 
     @Override
@@ -101,12 +189,31 @@ public class EmailManager implements InitializingBean, _EmailManager {
 
     @Override
     public EmailEndPoint getEndpoint(String email, String threadId) {
-        EmailEndPoint ep = endpoints.get(getKey(email, threadId));
+        String key = getKey(email, threadId);
+        EmailEndPoint ep = findEndpoint(key);
         if (ep != null) {
             return ep;
         }
 
-        return createEndpoint(email, threadId);
+        // Keeps the endpoint strongly reachable until returned
+        EmailEndPoint[] holder = new EmailEndPoint[1];
+        endpoints.compute(key, (k, current) -> {
+            EmailEndPoint existing = current == null ? null : current.get();
+            if (existing != null) {
+                holder[0] = existing;
+                return current;
+            }
+
+            holder[0] = createEndpoint(email, threadId);
+            return new EndPointRef(k, holder[0], endpointsCollected);
+        });
+
+        return holder[0];
+    }
+
+    @Override
+    public void setEndpointLoader(Consumer<String> loader) {
+        this.endpointLoader = loader;
     }
 
 }
@@ -0,0 +1,217 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.model.email;
+
+import io.kamax.matrix.bridge.email.config.email.EmailSenderQueueConfig;
+import io.kamax.matrix.bridge.email.dao.EmailSpoolDao;
+import io.kamax.matrix.bridge.email.dao._EmailSpoolDao;
+import io.kamax.matrix.bridge.email.model.BoundedExecutors;
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.ParseException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Persistent queue of outbound e-mails, sent in the background with retries.
+ */
+@Component
+public class EmailSendQueue implements InitializingBean, DisposableBean {
+
+    private Logger log = LoggerFactory.getLogger(EmailSendQueue.class);
+
+    @Autowired
+    private EmailSenderQueueConfig cfg;
+
+    @Autowired
+    private _EmailSpoolDao spool;
+
+    @Autowired
+    private SmtpTransportPool transports;
+
+    private ScheduledExecutorService dispatcher;
+    private ExecutorService workers;
+    private AtomicBoolean dispatchPending = new AtomicBoolean();
+    private Map<String, Semaphore> domains = new ConcurrentHashMap<>();
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        workers = BoundedExecutors.create("email-sender", cfg.getThreads(), cfg.getThreads());
+        dispatcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r);
+            t.setName("email-sender-dispatcher");
+            t.setDaemon(true);
+            return t;
+        });
+
+        // E-mails being sent when the previous run stopped
+        int released = spool.release();
+        if (released > 0) {
+            log.info("{} e-mail(s) were being sent when stopped, queued again", released);
+        }
+
+        // Picks up e-mails due for a retry, and any left over from a previous run
+        dispatcher.scheduleWithFixedDelay(this::dispatch, 0, cfg.getPollInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        dispatcher.shutdownNow();
+        workers.shutdown();
+    }
+
+    public void enqueue(String recipient, MimeMessage msg) throws MessagingException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            msg.writeTo(out);
+        } catch (IOException e) {
+            throw new MessagingException("Unable to serialize e-mail to " + recipient, e);
+        }
+
+        EmailSpoolDao dao = new EmailSpoolDao();
+        dao.setRecipient(recipient);
+        dao.setData(out.toByteArray());
+        dao.setAttempts(0);
+        dao.setNextAttempt(System.currentTimeMillis());
+        dao.setState(EmailSpoolDao.STATE_QUEUED);
+
+        long id = spool.store(dao);
+        log.info("Queued e-mail {} to {}", id, recipient);
+
+        wakeUp();
+    }
+
+    private void wakeUp() {
+        if (!dispatchPending.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            dispatcher.execute(this::dispatch);
+        } catch (RejectedExecutionException e) {
+            log.debug("E-mail queue dispatcher is shut down");
+        }
+    }
+
+    private String getDomain(String recipient) {
+        return StringUtils.substringAfterLast(recipient, "@").toLowerCase();
+    }
+
+    private void dispatch() {
+        dispatchPending.set(false);
+
+        try {
+            List<EmailSpoolDao> due = spool.listDue(System.currentTimeMillis(), cfg.getThreads() * 16);
+            for (EmailSpoolDao dao : due) {
+                Semaphore domain = domains.computeIfAbsent(getDomain(dao.getRecipient()), d -> new Semaphore(cfg.getDomainConcurrency()));
+                if (!domain.tryAcquire()) {
+                    // Too many e-mails in flight for this domain, it will be picked up by a later dispatch
+                    continue;
+                }
+
+                // The list might be outdated by the time we get here, the spool decides who sends an e-mail
+                if (!spool.claim(dao.getId())) {
+                    domain.release();
+                    continue;
+                }
+
+                try {
+                    workers.execute(() -> {
+                        try {
+                            deliver(dao);
+                        } finally {
+                            domain.release();
+                            wakeUp();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    dao.setState(EmailSpoolDao.STATE_QUEUED);
+                    spool.update(dao);
+                    domain.release();
+                    throw e;
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Error when dispatching queued e-mails", e);
+        }
+    }
+
+    private void deliver(EmailSpoolDao dao) {
+        try {
+            MimeMessage msg = new MimeMessage(transports.getSession(), new ByteArrayInputStream(dao.getData()));
+            transports.send(msg, InternetAddress.parse(dao.getRecipient()));
+            spool.delete(dao.getId());
+            log.info("Sent e-mail {} to {}", dao.getId(), dao.getRecipient());
+        } catch (ParseException e) {
+            bury(dao, e);
+        } catch (SendFailedException e) {
+            if (e.getInvalidAddresses() != null && e.getInvalidAddresses().length > 0) {
+                bury(dao, e);
+            } else {
+                retry(dao, e);
+            }
+        } catch (MessagingException | RuntimeException e) {
+            retry(dao, e);
+        }
+    }
+
+    private void retry(EmailSpoolDao dao, Exception e) {
+        int attempts = dao.getAttempts() + 1;
+        dao.setAttempts(attempts);
+        if (attempts >= cfg.getMaxAttempts()) {
+            bury(dao, e);
+            return;
+        }
+
+        long delay = Math.min(cfg.getRetryDelayMax(), cfg.getRetryDelay() << Math.min(attempts - 1, 30));
+        dao.setState(EmailSpoolDao.STATE_QUEUED);
+        dao.setNextAttempt(System.currentTimeMillis() + delay);
+        dao.setLastError(e.getMessage());
+        spool.update(dao);
+
+        log.warn("Unable to send e-mail {} to {} (attempt {} of {}), retrying in {} ms: {}",
+                dao.getId(), dao.getRecipient(), attempts, cfg.getMaxAttempts(), delay, e.getMessage());
+    }
+
+    private void bury(EmailSpoolDao dao, Exception e) {
+        dao.setState(EmailSpoolDao.STATE_DEAD);
+        dao.setLastError(e.getMessage());
+        spool.update(dao);
+
+        log.error("Giving up on e-mail {} to {} after {} attempt(s)", dao.getId(), dao.getRecipient(), dao.getAttempts(), e);
+    }
+
+}
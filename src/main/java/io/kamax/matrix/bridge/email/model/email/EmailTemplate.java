@@ -32,10 +32,12 @@ import java.util.*;
 public class EmailTemplate implements _EmailTemplate {
 
     private String subject;
+    private EmailTemplateText subjectText;
     private Map<String, _EmailTemplateContent> contentTemplates;
 
     public EmailTemplate(String subject, List<_EmailTemplateContent> contentTemplates) {
         this.subject = subject;
+        this.subjectText = EmailTemplateText.parse(subject);
         this.contentTemplates = new HashMap<>();
         for (_EmailTemplateContent content : contentTemplates) {
             this.contentTemplates.put(content.getType(), content);
@@ -47,6 +49,11 @@ public class EmailTemplate implements _EmailTemplate {
         return subject;
     }
 
+    @Override
+    public EmailTemplateText getSubjectText() {
+        return subjectText;
+    }
+
     @Override
     public List<_EmailTemplateContent> listContents() {
         return new ArrayList<>(contentTemplates.values());
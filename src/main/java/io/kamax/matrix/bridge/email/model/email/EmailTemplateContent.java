@@ -22,6 +22,9 @@ package io.kamax.matrix.bridge.email.model.email;
 
 import io.kamax.matrix.bridge.email.config.subscription.EmailTemplateContentConfig;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
@@ -30,7 +33,9 @@ import org.springframework.context.annotation.Scope;
 import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Component;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 
 @Component
@@ -38,20 +43,28 @@ import java.nio.charset.StandardCharsets;
 @Lazy
 public class EmailTemplateContent implements InitializingBean, _EmailTemplateContent {
 
+    private Logger log = LoggerFactory.getLogger(EmailTemplateContent.class);
+
     @Autowired
     private ApplicationContext app;
 
+    @Autowired
+    private EmailTemplateWatcher watcher;
+
     private EmailTemplateContentConfig cfg;
-    private Resource header;
-    private Resource footer;
-    private Resource content;
+    private CachedResource header;
+    private CachedResource footer;
+    private CachedResource content;
 
     public EmailTemplateContent(EmailTemplateContentConfig cfg) {
         this.cfg = cfg;
     }
 
-    private Resource get(String path) {
-        return app.getResource(path);
+    private CachedResource get(String path) throws IOException {
+        CachedResource resource = new CachedResource(path);
+        resource.load();
+        resource.watch();
+        return resource;
     }
 
     @Override
@@ -67,18 +80,104 @@ public class EmailTemplateContent implements InitializingBean, _EmailTemplateCon
     }
 
     @Override
-    public String getHeader() throws IOException {
-        return IOUtils.toString(header.getInputStream(), StandardCharsets.UTF_8);
+    public String getHeader() {
+        return header.getRaw();
+    }
+
+    @Override
+    public String getFooter() {
+        return footer.getRaw();
     }
 
     @Override
-    public String getFooter() throws IOException {
-        return IOUtils.toString(footer.getInputStream(), StandardCharsets.UTF_8);
+    public String getContent() {
+        return content.getRaw();
     }
 
     @Override
-    public String getContent() throws IOException {
-        return IOUtils.toString(content.getInputStream(), StandardCharsets.UTF_8);
+    public EmailTemplateText getHeaderText() {
+        return header.getText();
+    }
+
+    @Override
+    public EmailTemplateText getFooterText() {
+        return footer.getText();
+    }
+
+    @Override
+    public EmailTemplateText getContentText() {
+        return content.getText();
+    }
+
+    private class CachedResource {
+
+        private String path;
+        private Resource resource;
+        private volatile Loaded loaded;
+
+        CachedResource(String path) {
+            this.path = path;
+            if (StringUtils.isNotBlank(path)) {
+                this.resource = app.getResource(path);
+            }
+        }
+
+        void load() throws IOException {
+            if (resource == null) {
+                loaded = new Loaded("");
+                return;
+            }
+
+            try (InputStream is = resource.getInputStream()) {
+                loaded = new Loaded(IOUtils.toString(is, StandardCharsets.UTF_8));
+            }
+        }
+
+        void watch() throws IOException {
+            if (resource == null) {
+                return;
+            }
+
+            File file;
+            try {
+                file = resource.getFile();
+            } catch (IOException e) {
+                // Not on the filesystem, e.g. packaged in the JAR
+                return;
+            }
+
+            watcher.watch(file.toPath(), this::reload);
+        }
+
+        void reload() {
+            try {
+                load();
+                log.info("Reloaded template {}", path);
+            } catch (IOException e) {
+                log.warn("Unable to reload template {}, keeping the previous version", path, e);
+            }
+        }
+
+        String getRaw() {
+            return loaded.raw;
+        }
+
+        EmailTemplateText getText() {
+            return loaded.text;
+        }
+
+    }
+
+    private static class Loaded {
+
+        private final String raw;
+        private final EmailTemplateText text;
+
+        Loaded(String raw) {
+            this.raw = raw;
+            this.text = EmailTemplateText.parse(raw);
+        }
+
     }
 
 }
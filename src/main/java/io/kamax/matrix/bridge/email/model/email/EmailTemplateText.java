@@ -0,0 +1,232 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.model.email;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * A template parsed once into literal and token segments, so it can be rendered in a single pass.
+ * <p>
+ * If the template contains a message block, delimited by {@link EmailTemplateToken#MsgBlockStart} and
+ * {@link EmailTemplateToken#MsgBlockEnd}, the parts before, inside and after it are available separately.
+ * Without a block, the whole template is the block.
+ */
+public class EmailTemplateText {
+
+    private static final Map<String, EmailTemplateToken> tokens = new HashMap<>();
+    private static final EmailTemplateText empty = new EmailTemplateText(Collections.emptyList());
+
+    static {
+        for (EmailTemplateToken token : EmailTemplateToken.values()) {
+            tokens.put(token.getToken(), token);
+        }
+    }
+
+    public static EmailTemplateText parse(String template) {
+        List<Segment> segments = new ArrayList<>();
+        int literalStart = 0;
+        int i = template.indexOf('%');
+        while (i >= 0) {
+            int end = template.indexOf('%', i + 1);
+            if (end < 0) {
+                break;
+            }
+
+            EmailTemplateToken token = tokens.get(template.substring(i, end + 1));
+            if (token == null) {
+                // The closing % might be the start of a token
+                i = end;
+                continue;
+            }
+
+            if (literalStart < i) {
+                segments.add(new Segment(template.substring(literalStart, i)));
+            }
+            segments.add(new Segment(token));
+            literalStart = end + 1;
+            i = template.indexOf('%', literalStart);
+        }
+        if (literalStart < template.length()) {
+            segments.add(new Segment(template.substring(literalStart)));
+        }
+
+        return new EmailTemplateText(segments);
+    }
+
+    private List<Segment> segments;
+    private int literalLength;
+    private EmailTemplateText prefix;
+    private EmailTemplateText block;
+    private EmailTemplateText suffix;
+
+    private EmailTemplateText(List<Segment> segments) {
+        this.segments = segments;
+        this.literalLength = segments.stream().mapToInt(s -> s.isToken() ? 0 : s.getLiteral().length()).sum();
+
+        int blockStart = indexOf(EmailTemplateToken.MsgBlockStart, 0);
+        int blockEnd = indexOf(EmailTemplateToken.MsgBlockEnd, Math.max(blockStart, 0));
+        if (blockStart >= 0 && blockEnd >= 0) {
+            prefix = new EmailTemplateText(segments.subList(0, blockStart));
+            block = new EmailTemplateText(segments.subList(blockStart + 1, blockEnd));
+            suffix = new EmailTemplateText(segments.subList(blockEnd + 1, segments.size()));
+        } else {
+            prefix = segments.isEmpty() ? this : empty;
+            block = this;
+            suffix = prefix;
+        }
+    }
+
+    private int indexOf(EmailTemplateToken token, int from) {
+        for (int i = from; i < segments.size(); i++) {
+            if (segments.get(i).getToken() == token) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    public boolean contains(EmailTemplateToken token) {
+        return indexOf(token, 0) >= 0;
+    }
+
+    /**
+     * @return Total length of the literal parts, to size the output buffer
+     */
+    public int getLiteralLength() {
+        return literalLength;
+    }
+
+    public EmailTemplateText getPrefix() {
+        return prefix;
+    }
+
+    public EmailTemplateText getBlock() {
+        return block;
+    }
+
+    public EmailTemplateText getSuffix() {
+        return suffix;
+    }
+
+    /**
+     * Render the template, tokens without a value being kept as is.
+     *
+     * @param out    The builder to render into
+     * @param values The value of each token, or null if it has none
+     */
+    public void render(StringBuilder out, Function<EmailTemplateToken, String> values) {
+        for (Segment segment : segments) {
+            if (!segment.isToken()) {
+                out.append(segment.getLiteral());
+            } else {
+                String value = values.apply(segment.getToken());
+                out.append(value != null ? value : segment.getToken().getToken());
+            }
+        }
+    }
+
+    public String render(Function<EmailTemplateToken, String> values) {
+        StringBuilder out = new StringBuilder(literalLength + 16 * segments.size());
+        render(out, values);
+        return out.toString();
+    }
+
+    /**
+     * Replace the tokens that have a value, keeping the others to be rendered later.
+     *
+     * @param values The value of each token, or null if it should be kept
+     * @return The partially rendered template
+     */
+    public EmailTemplateText bind(Function<EmailTemplateToken, String> values) {
+        return new Builder().append(this, values).build();
+    }
+
+    /**
+     * Concatenates partially rendered templates.
+     */
+    public static class Builder {
+
+        private List<Segment> segments = new ArrayList<>();
+        private StringBuilder literal = new StringBuilder();
+
+        private void flush() {
+            if (literal.length() > 0) {
+                segments.add(new Segment(literal.toString()));
+                literal.setLength(0);
+            }
+        }
+
+        /**
+         * @param text   The template to append
+         * @param values The value of each token, or null if it should be kept
+         * @return This builder
+         */
+        public Builder append(EmailTemplateText text, Function<EmailTemplateToken, String> values) {
+            for (Segment segment : text.segments) {
+                String value = segment.isToken() ? values.apply(segment.getToken()) : segment.getLiteral();
+                if (value != null) {
+                    literal.append(value);
+                } else {
+                    flush();
+                    segments.add(segment);
+                }
+            }
+
+            return this;
+        }
+
+        public EmailTemplateText build() {
+            flush();
+            return new EmailTemplateText(new ArrayList<>(segments));
+        }
+
+    }
+
+    private static class Segment {
+
+        private String literal;
+        private EmailTemplateToken token;
+
+        Segment(String literal) {
+            this.literal = literal;
+        }
+
+        Segment(EmailTemplateToken token) {
+            this.token = token;
+        }
+
+        boolean isToken() {
+            return token != null;
+        }
+
+        String getLiteral() {
+            return literal;
+        }
+
+        EmailTemplateToken getToken() {
+            return token;
+        }
+
+    }
+
+}
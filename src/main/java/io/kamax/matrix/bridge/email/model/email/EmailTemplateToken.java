@@ -22,6 +22,12 @@ package io.kamax.matrix.bridge.email.model.email;
 
 public enum EmailTemplateToken {
 
+    /**
+     * Start and end of the part of a content template repeated for each message, when several messages are sent in a single e-mail
+     */
+    MsgBlockStart("%MSG_BLOCK_START%"),
+    MsgBlockEnd("%MSG_BLOCK_END%"),
+
     MsgContent("%MSG_CONTENT%"),
     MsgTimeHour("%MSG_TIME_HOUR%"),
     MsgTimeMin("%MSG_TIME_MIN%"),
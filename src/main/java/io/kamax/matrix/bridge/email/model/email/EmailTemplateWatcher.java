@@ -0,0 +1,134 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.model.email;
+
+import io.kamax.matrix.bridge.email.config.subscription.EmailNotificationConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches template files so they are reloaded when edited, without reading them on each notification.
+ */
+@Component
+public class EmailTemplateWatcher implements InitializingBean, DisposableBean {
+
+    private Logger log = LoggerFactory.getLogger(EmailTemplateWatcher.class);
+
+    @Autowired
+    private EmailNotificationConfig cfg;
+
+    private WatchService watcher;
+    private Thread thread;
+    private Map<WatchKey, Path> dirs = new ConcurrentHashMap<>();
+    private Map<Path, List<Runnable>> listeners = new ConcurrentHashMap<>();
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!cfg.isWatch()) {
+            log.info("Template files will not be watched for changes");
+            return;
+        }
+
+        watcher = FileSystems.getDefault().newWatchService();
+        thread = new Thread(this::run);
+        thread.setName("email-template-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    /**
+     * Call the listener each time the file is created or modified.
+     *
+     * @param file     The file to watch
+     * @param listener Called from the watcher thread
+     */
+    public synchronized void watch(Path file, Runnable listener) throws IOException {
+        if (watcher == null) {
+            return;
+        }
+
+        Path path = file.toAbsolutePath().normalize();
+        Path dir = path.getParent();
+        if (!dirs.containsValue(dir)) {
+            dirs.put(dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, OVERFLOW), dir);
+        }
+
+        listeners.computeIfAbsent(path, p -> new CopyOnWriteArrayList<>()).add(listener);
+        log.info("Watching template file {}", path);
+    }
+
+    private void notify(Path file) {
+        listeners.getOrDefault(file, new CopyOnWriteArrayList<>()).forEach(listener -> {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                log.warn("Unable to process change of template file {}", file, e);
+            }
+        });
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                Path dir = dirs.get(key);
+                if (dir != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (OVERFLOW.equals(event.kind())) {
+                            // Events were lost, every file of the directory might have changed
+                            listeners.keySet().stream().filter(f -> dir.equals(f.getParent())).forEach(this::notify);
+                        } else {
+                            notify(dir.resolve((Path) event.context()));
+                        }
+                    }
+                }
+
+                if (!key.reset()) {
+                    log.warn("Template directory {} cannot be watched anymore", dir);
+                    dirs.remove(key);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.info("Template watcher stopped");
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.model.email;
+
+import com.sun.mail.smtp.SMTPTransport;
+import io.kamax.matrix.bridge.email.config.email.EmailSenderConfig;
+import io.kamax.matrix.bridge.email.config.email.EmailSenderPoolConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.util.concurrent.*;
+
+/**
+ * Bounded pool of SMTP connections shared by all e-mail endpoints.
+ */
+@Component
+public class SmtpTransportPool implements InitializingBean, DisposableBean {
+
+    private Logger log = LoggerFactory.getLogger(SmtpTransportPool.class);
+
+    @Autowired
+    private EmailSenderConfig cfg;
+
+    @Autowired
+    private EmailSenderPoolConfig poolCfg;
+
+    private Session session;
+    private Semaphore permits;
+
+    // Most recently used connections are at the head, idle ones drift towards the tail where they are evicted
+    private BlockingDeque<PooledTransport> available = new LinkedBlockingDeque<>();
+    private ScheduledExecutorService evictor;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        session = Session.getInstance(System.getProperties());
+        permits = new Semaphore(poolCfg.getSize(), true);
+
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r);
+            t.setName("smtp-pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, poolCfg.getIdleTimeout() / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        evictor.shutdownNow();
+
+        PooledTransport t;
+        while ((t = available.pollFirst()) != null) {
+            t.close();
+        }
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    private PooledTransport open() throws MessagingException {
+        SMTPTransport transport = (SMTPTransport) session.getTransport("smtp");
+        transport.setStartTLS(cfg.getTls() > 0);
+        transport.setRequireStartTLS(cfg.getTls() > 1);
+        transport.connect(cfg.getHost(), cfg.getPort(), cfg.getLogin(), cfg.getPassword());
+        log.info("Opened SMTP connection to {}:{}", cfg.getHost(), cfg.getPort());
+
+        return new PooledTransport(transport);
+    }
+
+    private PooledTransport borrow() throws MessagingException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for an SMTP connection", e);
+        }
+
+        try {
+            PooledTransport t;
+            while ((t = available.pollFirst()) != null) {
+                if (t.isUsable()) {
+                    return t;
+                }
+
+                t.close();
+            }
+
+            return open();
+        } catch (MessagingException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void release(PooledTransport t, boolean reusable) {
+        try {
+            t.lastUsed = System.currentTimeMillis();
+            if (reusable && t.sent < poolCfg.getMaxMessages()) {
+                available.offerFirst(t);
+            } else {
+                t.close();
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+
+        PooledTransport t;
+        while ((t = available.pollLast()) != null) {
+            if (now - t.lastUsed < poolCfg.getIdleTimeout()) {
+                available.offerLast(t);
+                break;
+            }
+
+            log.debug("Evicting idle SMTP connection");
+            t.close();
+        }
+    }
+
+    public void send(MimeMessage msg, Address[] recipients) throws MessagingException {
+        PooledTransport t = borrow();
+        boolean reusable = false;
+        try {
+            log.info("Sending email via SMTP using {}:{}", cfg.getHost(), cfg.getPort());
+            t.transport.sendMessage(msg, recipients);
+            t.sent++;
+            reusable = true;
+        } finally {
+            release(t, reusable);
+        }
+    }
+
+    private class PooledTransport {
+
+        private SMTPTransport transport;
+        private long lastUsed;
+        private int sent;
+
+        PooledTransport(SMTPTransport transport) {
+            this.transport = transport;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        boolean isUsable() {
+            if (sent >= poolCfg.getMaxMessages()) {
+                return false;
+            }
+
+            if (System.currentTimeMillis() - lastUsed < poolCfg.getValidateAfter()) {
+                return true;
+            }
+
+            // Sends a NOOP to make sure the server did not drop the connection while it was idle
+            return transport.isConnected();
+        }
+
+        void close() {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                log.debug("Error when closing SMTP connection: {}", e.getMessage());
+            }
+        }
+
+    }
+
+}
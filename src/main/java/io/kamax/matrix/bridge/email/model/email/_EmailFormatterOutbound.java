@@ -27,12 +27,15 @@ import io.kamax.matrix.bridge.email.model.subscription._SubscriptionEvent;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 import java.io.IOException;
+import java.util.List;
 import java.util.Optional;
 
 public interface _EmailFormatterOutbound {
 
     Optional<MimeMessage> get(_BridgeSubscription sub, _MatrixBridgeMessage msg) throws IOException, MessagingException;
 
+    Optional<MimeMessage> get(_BridgeSubscription sub, List<_MatrixBridgeMessage> msgs) throws IOException, MessagingException;
+
     Optional<MimeMessage> get(_SubscriptionEvent ev) throws IOException, MessagingException;
 
 }
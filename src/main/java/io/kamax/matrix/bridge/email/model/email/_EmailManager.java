@@ -20,10 +20,18 @@
 
 package io.kamax.matrix.bridge.email.model.email;
 
+import java.util.function.Consumer;
+
 public interface _EmailManager {
 
     String getKey(String email, String threadId);
 
     _EmailEndPoint getEndpoint(String email, String threadId);
 
+    /**
+     * Set what to call with the key of an incoming e-mail before it is delivered, so its endpoint can be created
+     * if it is not in use yet.
+     */
+    void setEndpointLoader(Consumer<String> loader);
+
 }
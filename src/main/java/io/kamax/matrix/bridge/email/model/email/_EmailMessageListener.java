@@ -21,9 +21,18 @@
 package io.kamax.matrix.bridge.email.model.email;
 
 import javax.mail.Message;
+import java.util.concurrent.CompletableFuture;
 
 public interface _EmailMessageListener {
 
-    void push(String key, Message msg);
+    /**
+     * Hand off a received e-mail. The e-mail is kept in the mailbox until the returned future completes, and only
+     * deleted if it completes normally.
+     *
+     * @param key The key found in the recipient address
+     * @param msg The e-mail, only readable until this method returns
+     * @return A future completed once the e-mail was processed
+     */
+    CompletableFuture<Void> push(String key, Message msg);
 
 }
@@ -27,6 +27,8 @@ public interface _EmailTemplate {
 
     String getSubject();
 
+    EmailTemplateText getSubjectText();
+
     List<_EmailTemplateContent> listContents();
 
     Optional<_EmailTemplateContent> getContent(String mime);
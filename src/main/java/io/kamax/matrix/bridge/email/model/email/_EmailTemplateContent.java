@@ -32,4 +32,10 @@ public interface _EmailTemplateContent {
 
     String getContent() throws IOException;
 
+    EmailTemplateText getHeaderText();
+
+    EmailTemplateText getFooterText();
+
+    EmailTemplateText getContentText();
+
 }
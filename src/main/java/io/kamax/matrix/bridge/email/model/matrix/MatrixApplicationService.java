@@ -20,13 +20,22 @@
 
 package io.kamax.matrix.bridge.email.model.matrix;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import io.kamax.matrix.*;
 import io.kamax.matrix.bridge.email.config.bridge.BridgeCommandConfig;
+import io.kamax.matrix.bridge.email.config.bridge.BridgeFanOutConfig;
 import io.kamax.matrix.bridge.email.config.bridge.BridgeInviteConfig;
 import io.kamax.matrix.bridge.email.config.matrix.HomeserverConfig;
 import io.kamax.matrix.bridge.email.config.matrix.IdentityConfig;
+import io.kamax.matrix.bridge.email.config.matrix.MatrixMembershipConfig;
+import io.kamax.matrix.bridge.email.config.matrix.MatrixTransactionConfig;
+import io.kamax.matrix.bridge.email.dao.MatrixTransactionDao;
+import io.kamax.matrix.bridge.email.dao._MatrixTransactionDao;
 import io.kamax.matrix.bridge.email.exception.*;
 import io.kamax.matrix.bridge.email.model.BridgeEmailCodec;
+import io.kamax.matrix.bridge.email.model.ExpiringCache;
+import io.kamax.matrix.bridge.email.model.OrderedExecutor;
 import io.kamax.matrix.bridge.email.model.subscription._BridgeSubscription;
 import io.kamax.matrix.bridge.email.model.subscription._SubscriptionManager;
 import io.kamax.matrix.client.MatrixClientRequestException;
@@ -40,16 +49,27 @@ import io.kamax.matrix.hs._MatrixRoom;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 @Component
-public class MatrixApplicationService implements _MatrixApplicationService {
+public class MatrixApplicationService implements _MatrixApplicationService, InitializingBean, DisposableBean {
 
     private Logger log = LoggerFactory.getLogger(MatrixApplicationService.class);
 
@@ -65,6 +85,15 @@ public class MatrixApplicationService implements _MatrixApplicationService {
     @Autowired
     private BridgeCommandConfig bCmdCfg;
 
+    @Autowired
+    private BridgeFanOutConfig fanOutCfg;
+
+    @Autowired
+    private MatrixTransactionConfig txnCfg;
+
+    @Autowired
+    private MatrixMembershipConfig membershipCfg;
+
     @Autowired
     private BridgeEmailCodec emailCodec;
 
@@ -74,17 +103,46 @@ public class MatrixApplicationService implements _MatrixApplicationService {
     @Autowired
     private _SubscriptionManager subMgr;
 
+    @Autowired
+    private _MatrixTransactionDao txnDao;
+
+    @Autowired
+    private MatrixTransactionParser txnParser;
+
     private Pattern cmdOptsParser = Pattern.compile("([^\"]\\S*|\".+?\")\\s*");
 
-    private Map<String, List<_MatrixID>> memberships = new HashMap<>();
-    private String lastTransactionId;
+    private RoomMemberStore members;
 
-    private synchronized List<_MatrixID> getJoinedUsers(String roomId) {
-        return memberships.computeIfAbsent(roomId, s -> mgr.getClient().getRoom(s).getJoinedUsers());
+    private OrderedExecutor fanOut;
+    private ExpiringCache<String, Boolean> txnIds;
+    private ConcurrentMap<String, CompletableFuture<Void>> txnInFlight = new ConcurrentHashMap<>();
+    private ExpiringCache<String, Set<String>> txnProgress;
+    private ScheduledExecutorService txnWorker;
+    private AtomicBoolean txnPending = new AtomicBoolean();
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        members = new RoomMemberStore(roomId -> mgr.getClient().getRoom(roomId).getJoinedUsers(), mgr::isOurUser, membershipCfg.getTtl());
+        txnParser.setFilter(this::isRelevant);
+        fanOut = new OrderedExecutor("matrix-fanout", fanOutCfg.getThreads(), fanOutCfg.getQueue());
+        txnIds = new ExpiringCache<>(txnCfg.getCacheSize(), txnCfg.getRetention(), false);
+        txnProgress = new ExpiringCache<>(txnCfg.getCacheSize(), txnCfg.getRetention(), false);
+        txnWorker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r);
+            t.setName("matrix-transactions");
+            t.setDaemon(true);
+            return t;
+        });
+
+        // Also picks up transactions recorded but not processed before a restart
+        txnWorker.scheduleWithFixedDelay(this::processPending, 0, txnCfg.getPollInterval(), TimeUnit.MILLISECONDS);
+        txnWorker.scheduleWithFixedDelay(this::purgeTransactions, 1, 1, TimeUnit.HOURS);
     }
 
-    private synchronized void expireUsers(String roomId) {
-        memberships.remove(roomId);
+    @Override
+    public void destroy() throws Exception {
+        txnWorker.shutdownNow();
+        fanOut.shutdown();
     }
 
     private _MatrixApplicationServiceClient validateCredentials(AHomeserverCall call) {
@@ -156,25 +214,228 @@ public class MatrixApplicationService implements _MatrixApplicationService {
     public void push(MatrixTransactionPush transaction) {
         validateCredentials(transaction);
 
-        if (StringUtils.equals(lastTransactionId, transaction.getId())) {
-            log.info("Transaction {} has already been processed, skipping");
+        // The homeserver may push the same transaction again while it is still being processed, which then gets
+        // the outcome of the attempt in progress so the transaction is only acknowledged once it really was handled
+        CompletableFuture<Void> attempt = new CompletableFuture<>();
+        String txnId = transaction.getId();
+        CompletableFuture<Void> inFlight = txnInFlight.putIfAbsent(txnId, attempt);
+        if (inFlight != null) {
+            log.info("Transaction {} is already being processed, waiting on its outcome", txnId);
+            try {
+                inFlight.join();
+                return;
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+
+                throw e;
+            }
+        }
+
+        try {
+            // Only marked as received once handled, before the attempt is released
+            if (txnIds.get(txnId).isPresent()) {
+                log.info("Transaction {} has already been received, skipping", txnId);
+            } else {
+                process(transaction);
+                txnIds.put(txnId, Boolean.TRUE);
+            }
+
+            attempt.complete(null);
+        } catch (RuntimeException e) {
+            // The homeserver will send the transaction again
+            attempt.completeExceptionally(e);
+            throw e;
+        } finally {
+            txnInFlight.remove(txnId, attempt);
+        }
+    }
+
+    private void process(MatrixTransactionPush transaction) {
+        if (txnCfg.isPersist() && txnDao.get(transaction.getId()).isPresent()) {
+            log.info("Transaction {} has already been received, skipping", transaction.getId());
+            return;
+        }
+
+        MatrixTransactionDao dao = new MatrixTransactionDao();
+        dao.setId(transaction.getId());
+        dao.setReceived(System.currentTimeMillis());
+
+        if (txnCfg.isAsync()) {
+            // Rejected right away if it could never be processed
+            txnParser.validate(transaction.getJson());
+            dao.setJson(transaction.getJson());
+            if (txnDao.store(dao)) {
+                log.info("Transaction {} recorded, processing in the background", transaction.getId());
+                wakeUpTransactions();
+            }
+
             return;
         }
 
-        for (_MatrixEvent event : transaction.getEvents()) {
+        // What was processed by failed attempts is kept for when the homeserver sends the transaction again
+        Set<String> progress = txnProgress.computeIfAbsent(transaction.getId(), id -> ConcurrentHashMap.newKeySet());
+        process(transaction.getEvents(), progress);
+        txnProgress.invalidate(transaction.getId());
+
+        if (txnCfg.isPersist()) {
+            dao.setProcessed(true);
+            txnDao.store(dao);
+        }
+    }
+
+    /**
+     * Process events in order, skipping the ones already processed by a previous attempt.
+     *
+     * @param events   The events of the transaction
+     * @param progress Keys of what is processed, filled as processing goes. Must be thread-safe
+     */
+    private void process(List<_MatrixEvent> events, Set<String> progress) {
+        for (_MatrixEvent event : events) {
+            if (event.getId() != null && progress.contains(event.getId())) {
+                log.info("Event {} was already processed, skipping", event.getId());
+                continue;
+            }
+
             if (event instanceof _RoomMembershipEvent) {
                 pushMembershipEvent((_RoomMembershipEvent) event);
             } else if (event instanceof _RoomMessageEvent) {
-                pushMessageEvent((_RoomMessageEvent) event);
+                pushMessageEvent((_RoomMessageEvent) event, progress);
             } else {
                 log.info("Unknown event type {} from {}", event.getType(), event.getSender());
             }
+
+            if (event.getId() != null) {
+                // Recipients of the event are not needed anymore
+                progress.removeIf(key -> key.startsWith(event.getId() + " "));
+                progress.add(event.getId());
+            }
+        }
+    }
+
+    private Optional<String> getString(JsonObject obj, String key) {
+        JsonElement el = obj.get(key);
+        return el == null || !el.isJsonPrimitive() ? Optional.empty() : Optional.of(el.getAsString());
+    }
+
+    /**
+     * Tell if a raw event can lead to any action, so events that cannot are not built nor processed.
+     */
+    private boolean isRelevant(JsonObject event) {
+        String type = getString(event, "type").orElse("");
+        if ("m.room.message".equals(type)) {
+            JsonElement content = event.get("content");
+            String body = content != null && content.isJsonObject() ? getString(content.getAsJsonObject(), "body").orElse("") : "";
+            if (body.startsWith(bCmdCfg.getKeyword() + " ")) {
+                return true;
+            }
+
+            // Messages of rooms without bridged users go nowhere
+            return getString(event, "room_id").map(roomId -> !members.get(roomId).isEmpty()).orElse(true);
+        }
+
+        if ("m.room.member".equals(type)) {
+            Optional<String> stateKey = getString(event, "state_key");
+            if (!stateKey.isPresent() || StringUtils.equals(mgr.getClient().getUser().getId(), stateKey.get())) {
+                return true;
+            }
+
+            try {
+                return mgr.isOurUser(new MatrixID(stateKey.get()));
+            } catch (RuntimeException e) {
+                // Let the event be processed and reported as usual
+                return true;
+            }
         }
 
-        lastTransactionId = transaction.getId();
+        return true;
+    }
+
+    private void wakeUpTransactions() {
+        if (!txnPending.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            txnWorker.execute(this::processPending);
+        } catch (RejectedExecutionException e) {
+            log.debug("Transaction worker is shut down");
+        }
+    }
+
+    private void processPending() {
+        txnPending.set(false);
+
+        try {
+            Optional<MatrixTransactionDao> daoOpt;
+            while ((daoOpt = txnDao.getNextPending(txnCfg.getBlockingAttempts(), System.currentTimeMillis())).isPresent()) {
+                MatrixTransactionDao dao = daoOpt.get();
+
+                // Later transactions wait so events are processed in the order the homeserver sent them, until the
+                // transaction failed too many times and is set aside
+                if (dao.getNextAttempt() > System.currentTimeMillis()) {
+                    return;
+                }
+
+                Set<String> progress = ConcurrentHashMap.newKeySet();
+                progress.addAll(dao.getProgress());
+                dao.setProgress(progress);
+                try {
+                    process(txnParser.parse(dao.getJson()), progress);
+                    dao.setProcessed(true);
+                    log.info("Transaction {} processed", dao.getId());
+                } catch (RuntimeException e) {
+                    int attempts = dao.getAttempts() + 1;
+                    dao.setAttempts(attempts);
+                    if (attempts >= txnCfg.getMaxAttempts()) {
+                        // Kept with its content, to be inspected and replayed
+                        log.error("Giving up on transaction {} after {} attempt(s), marked as dead", dao.getId(), attempts, e);
+                        dao.setDead(true);
+                    } else {
+                        long delay = Math.min(txnCfg.getRetryDelayMax(), txnCfg.getRetryDelay() << Math.min(attempts - 1, 30));
+                        dao.setNextAttempt(System.currentTimeMillis() + delay);
+                        log.warn("Unable to process transaction {} (attempt {} of {}), retrying in {} ms", dao.getId(), attempts, txnCfg.getMaxAttempts(), delay, e);
+                        txnDao.update(dao);
+                        if (attempts < txnCfg.getBlockingAttempts()) {
+                            return;
+                        }
+
+                        log.warn("Transaction {} is set aside, later transactions are processed meanwhile", dao.getId());
+                        continue;
+                    }
+                }
+
+                txnDao.update(dao);
+            }
+        } catch (RuntimeException e) {
+            log.error("Error when processing pending transactions", e);
+        }
     }
 
-    private void pushMessageEvent(_RoomMessageEvent ev) {
+    private void purgeTransactions() {
+        txnIds.cleanUp();
+        log.info("Transaction ID cache: {} entries, {} duplicate(s), {} new, {} evicted",
+                txnIds.size(), txnIds.getHits(), txnIds.getMisses(), txnIds.getEvictions());
+
+        if (!txnCfg.isPersist()) {
+            return;
+        }
+
+        try {
+            int purged = txnDao.purge(System.currentTimeMillis() - txnCfg.getRetention());
+            log.info("Purged {} processed transaction(s)", purged);
+
+            int dead = txnDao.countDead();
+            if (dead > 0) {
+                log.warn("{} transaction(s) could not be processed and were given up, see the matrix_transaction table", dead);
+            }
+        } catch (RuntimeException e) {
+            log.error("Error when purging processed transactions", e);
+        }
+    }
+
+    private void pushMessageEvent(_RoomMessageEvent ev, Set<String> progress) {
         log.info("We got message event {} in {}", ev.getType(), ev.getRoomId());
 
         if (StringUtils.isBlank(ev.getBodyType())) {
@@ -191,29 +452,62 @@ public class MatrixApplicationService implements _MatrixApplicationService {
             handleCommand(ev, mgr.getClient());
         } else {
             log.debug("Computing forward list");
-            log.debug("Listing users in the room {}", ev.getRoomId());
-            List<_MatrixID> users = getJoinedUsers(ev.getRoomId());
+            log.debug("Listing bridged users in the room {}", ev.getRoomId());
+            Set<_MatrixID> users = members.get(ev.getRoomId());
+            _MatrixUser sender = mgr.getClient().getUser(ev.getSender());
+            List<CompletableFuture<Void>> deliveries = new ArrayList<>();
             for (_MatrixID user : users) {
-                if (!mgr.isOurUser(user)) {
-                    log.debug("{} is not a bridged user, skipping", user);
-                    continue;
-                }
-
                 if (user.equals(ev.getSender())) {
                     log.debug("{} is the original sender of the event, skipping", user);
                     continue;
                 }
 
-                log.debug("{} is a valid potential bridge user", user);
-                Optional<_MatrixBridgeUser> userOpt = mgr.findClientForUser(user);
-                if (!userOpt.isPresent()) {
-                    log.warn("No Matrix client for MXID {} while present in the room", user);
+                String done = ev.getId() + " " + user.getId();
+                if (progress.contains(done)) {
+                    log.debug("{} already got the message, skipping", user);
                     continue;
                 }
 
-                MatrixEndPoint ep = mgr.getEndpoint(user.getId(), ev.getRoomId());
-                log.info("Injecting message {} from room {} to {}", ev.getId(), ev.getRoomId(), user);
-                ep.inject(new MatrixBridgeMessage(ev.getId(), ev.getTime(), mgr.getClient().getUser(ev.getSender()), ev.getBody()));
+                // Recipients are processed in parallel, but messages to the same endpoint stay in order
+                String key = mgr.getKey(user.getId(), ev.getRoomId());
+                deliveries.add(fanOut.submit(key, () -> {
+                    log.debug("{} is a valid potential bridge user", user);
+                    Optional<_MatrixBridgeUser> userOpt = mgr.findClientForUser(user);
+                    if (!userOpt.isPresent()) {
+                        log.warn("No Matrix client for MXID {} while present in the room", user);
+                        return;
+                    }
+
+                    // Also loads the subscription, and so its endpoints, if it is not in memory
+                    if (!subMgr.getWithMatrixId(user.getId(), ev.getRoomId()).isPresent()) {
+                        log.debug("No subscription for {} in {}, skipping", user, ev.getRoomId());
+                        return;
+                    }
+
+                    MatrixEndPoint ep = mgr.getEndpoint(user.getId(), ev.getRoomId());
+                    log.info("Injecting message {} from room {} to {}", ev.getId(), ev.getRoomId(), user);
+                    ep.inject(new MatrixBridgeMessage(ev.getId(), ev.getTime(), sender, ev.getBody()));
+                }).whenComplete((v, t) -> {
+                    if (t == null) {
+                        if (ev.getId() != null) {
+                            progress.add(done);
+                        }
+                    } else {
+                        log.error("Unable to inject message {} from room {} to {}", ev.getId(), ev.getRoomId(), user, t);
+                    }
+                }));
+            }
+
+            // The transaction is only acknowledged once the message reached all recipients. All of them are tried
+            // first, then any failure fails the transaction so it is retried, for the recipients not reached only.
+            try {
+                CompletableFuture.allOf(deliveries.toArray(new CompletableFuture[0])).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+
+                throw e;
             }
         }
     }
@@ -237,7 +531,7 @@ public class MatrixApplicationService implements _MatrixApplicationService {
             }
 
             handleMembershipEvent(clientOpt.get(), ev);
-            expireUsers(ev.getRoomId());
+            members.update(ev.getRoomId(), ev.getInvitee(), ev.getMembership());
         }
     }
 
@@ -282,7 +576,7 @@ public class MatrixApplicationService implements _MatrixApplicationService {
             if (!user.is(mgr.getClient())) {
                 log.info("We are a bridge user, registering subscription");
 
-                Optional<_BridgeSubscription> subOpt = subMgr.getWithMatrixKey(mgr.getKey(user.getClient().getUser().getId(), ev.getRoomId()));
+                Optional<_BridgeSubscription> subOpt = subMgr.getWithMatrixId(user.getClient().getUser().getId(), ev.getRoomId());
                 if (!subOpt.isPresent()) {
                     log.info("Joined room without a subscription, leaving");
                     user.getClient().getRoom(ev.getRoomId()).leave();
@@ -302,7 +596,7 @@ public class MatrixApplicationService implements _MatrixApplicationService {
                 MatrixEndPoint ep = mgr.getEndpoint(user.getClient().getUser().getId(), ev.getRoomId());
                 ep.close();
 
-                Optional<_BridgeSubscription> subOpt = subMgr.getWithMatrixKey(mgr.getKey(user.getClient().getUser().getId(), ev.getRoomId()));
+                Optional<_BridgeSubscription> subOpt = subMgr.getWithMatrixId(user.getClient().getUser().getId(), ev.getRoomId());
                 if (subOpt.isPresent()) {
                     log.info("Subscription is still active, canceling");
                     subOpt.get().terminate();
@@ -0,0 +1,56 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.model.matrix;
+
+/**
+ * Avatar picture of a user, identified by a digest of its size and content.
+ */
+public class MatrixAvatar {
+
+    private String digest;
+    private String type;
+    private String filename;
+    private byte[] data;
+
+    public MatrixAvatar(String digest, String type, String filename, byte[] data) {
+        this.digest = digest;
+        this.type = type;
+        this.filename = filename;
+        this.data = data;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+}
@@ -0,0 +1,296 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.model.matrix;
+
+import io.kamax.matrix._MatrixContent;
+import io.kamax.matrix._MatrixUser;
+import io.kamax.matrix.bridge.email.config.matrix.MatrixAvatarConfig;
+import io.kamax.matrix.bridge.email.model.ExpiringCache;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Two-tier cache of user avatar thumbnails.
+ * <p>
+ * Avatars are stored by a digest of their size and content, so users sharing the same picture share the same entry.
+ * The most used avatars are kept in memory, and all of them are written to disk so they survive restarts.
+ * For each user, the digest of its current avatar is also kept on disk until the TTL expires. Avatars no longer
+ * used by any user are removed from disk by {@link #prune()}, to be called periodically.
+ */
+public class MatrixAvatarCache {
+
+    private static final int WIDTH = 48;
+    private static final int HEIGHT = 48;
+
+    private Logger log = LoggerFactory.getLogger(MatrixAvatarCache.class);
+
+    private MatrixAvatarConfig cfg;
+    private File blobDir;
+    private File userDir;
+
+    private ExpiringCache<String, MatrixAvatar> blobs;
+    private ExpiringCache<String, String> users;
+
+    public MatrixAvatarCache(MatrixAvatarConfig cfg) {
+        this.cfg = cfg;
+        this.blobs = new ExpiringCache<>(cfg.getCacheSize(), 0, false);
+        this.users = new ExpiringCache<>(cfg.getCacheSize() * 10, cfg.getTtl(), false);
+    }
+
+    public void init() throws IOException {
+        File root = new File(cfg.getLocation()).getAbsoluteFile();
+        blobDir = new File(root, "blobs");
+        userDir = new File(root, "users");
+        Files.createDirectories(blobDir.toPath());
+        Files.createDirectories(userDir.toPath());
+        log.info("Avatar cache directory: {}", root);
+
+        prune();
+    }
+
+    private static String sha256(byte[]... inputs) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (byte[] input : inputs) {
+                md.update(input);
+            }
+
+            StringBuilder b = new StringBuilder();
+            for (byte d : md.digest()) {
+                b.append(Character.forDigit((d >> 4) & 0xF, 16)).append(Character.forDigit(d & 0xF, 16));
+            }
+            return b.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private File getUserFile(String userId) {
+        return new File(userDir, sha256((userId + "@" + WIDTH + "x" + HEIGHT).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private File getBlobFile(String digest) {
+        return new File(blobDir, digest);
+    }
+
+    private boolean isExpired(File f) {
+        return System.currentTimeMillis() - f.lastModified() >= cfg.getTtl();
+    }
+
+    /**
+     * Remove users which avatar has expired, and avatars no longer used by any user.
+     */
+    void prune() {
+        // Avatars just written might not be referenced by their user yet
+        long recent = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1);
+
+        Set<String> used = new HashSet<>();
+        File[] userFiles = userDir.listFiles();
+        if (userFiles != null) {
+            for (File f : userFiles) {
+                if (isExpired(f)) {
+                    f.delete();
+                    continue;
+                }
+
+                readUserFile(f).ifPresent(used::add);
+            }
+        }
+
+        int pruned = 0;
+        File[] blobFiles = blobDir.listFiles();
+        if (blobFiles != null) {
+            for (File f : blobFiles) {
+                if (!used.contains(f.getName()) && f.lastModified() < recent && f.delete()) {
+                    pruned++;
+                }
+            }
+        }
+
+        log.info("Avatar cache: {} avatar(s) in use, {} pruned", used.size(), pruned);
+    }
+
+    private Optional<String> readUserFile(File f) {
+        try {
+            return Optional.of(new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8).trim());
+        } catch (IOException e) {
+            log.warn("Unable to read avatar cache entry {}: {}", f, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    private void write(File f, byte[]... parts) throws IOException {
+        // Written aside and moved in place so readers never see a partial file
+        Path tmp = Files.createTempFile(f.getParentFile().toPath(), f.getName(), ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            for (byte[] part : parts) {
+                ByteBuffer buf = ByteBuffer.wrap(part);
+                while (buf.hasRemaining()) {
+                    ch.write(buf);
+                }
+            }
+        }
+        Files.move(tmp, f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private byte[] withLength(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(4 + bytes.length).putInt(bytes.length).put(bytes).array();
+    }
+
+    private void writeBlob(MatrixAvatar avatar) {
+        File f = getBlobFile(avatar.getDigest());
+        if (f.exists()) {
+            return;
+        }
+
+        try {
+            write(f, withLength(avatar.getType()), withLength(avatar.getFilename()), avatar.getData());
+        } catch (IOException e) {
+            log.warn("Unable to store avatar {} on disk: {}", avatar.getDigest(), e.getMessage());
+        }
+    }
+
+    private String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private MatrixAvatar readBlob(String digest) {
+        File f = getBlobFile(digest);
+        if (!f.isFile()) {
+            return null;
+        }
+
+        try {
+            // Thumbnails are small, mapping them would cost more than reading them
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+            String type = readString(buf);
+            String filename = readString(buf);
+            byte[] data = new byte[buf.remaining()];
+            buf.get(data);
+            return new MatrixAvatar(digest, type, filename, data);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to read avatar {} from disk: {}", digest, e.getMessage());
+            return null;
+        }
+    }
+
+    private String readUser(String userId) {
+        File f = getUserFile(userId);
+        if (!f.isFile() || isExpired(f)) {
+            return null;
+        }
+
+        return readUserFile(f).orElse(null);
+    }
+
+    private String fetch(_MatrixUser user) {
+        String userId = user.getId().getId();
+        log.info("Fetching avatar of {}", userId);
+
+        Optional<_MatrixContent> contentOpt;
+        try {
+            contentOpt = user.getAvatarThumbnail(WIDTH, HEIGHT);
+        } catch (RuntimeException e) {
+            // Not cached, so we try again next time
+            log.warn("Unable to fetch avatar of {}: {}", userId, e.getMessage());
+            return null;
+        }
+
+        String digest = "";
+        if (contentOpt.isPresent() && contentOpt.get().isValid()) {
+            _MatrixContent content = contentOpt.get();
+            byte[] data = content.getData();
+            String filename = content.getFilename()
+                    .map(f -> f.replace("image/", "").replace("\"", ""))
+                    .filter(StringUtils::isNotBlank)
+                    .orElseGet(() -> "unknown." + content.getType());
+
+            digest = sha256((WIDTH + "x" + HEIGHT).getBytes(StandardCharsets.UTF_8), data);
+            MatrixAvatar avatar = new MatrixAvatar(digest, content.getType(), filename, data);
+            blobs.put(digest, avatar);
+            writeBlob(avatar);
+        }
+
+        try {
+            write(getUserFile(userId), digest.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            log.warn("Unable to store avatar of {} on disk: {}", userId, e.getMessage());
+        }
+
+        return digest;
+    }
+
+    public Optional<MatrixAvatar> get(_MatrixUser user) {
+        String userId = user.getId().getId();
+        String digest = users.computeIfAbsent(userId, id -> {
+            String d = readUser(id);
+            return d != null ? d : fetch(user);
+        });
+
+        if (StringUtils.isEmpty(digest)) {
+            return Optional.empty();
+        }
+
+        MatrixAvatar avatar = blobs.computeIfAbsent(digest, this::readBlob);
+        if (avatar == null) {
+            // Avatar was removed from disk, we need to fetch it again
+            users.invalidate(userId);
+            String d = fetch(user);
+            return StringUtils.isEmpty(d) ? Optional.empty() : blobs.get(d);
+        }
+
+        return Optional.of(avatar);
+    }
+
+    public void invalidate(String userId) {
+        users.invalidate(userId);
+        getUserFile(userId).delete();
+    }
+
+    ExpiringCache<String, MatrixAvatar> getBlobs() {
+        return blobs;
+    }
+
+    ExpiringCache<String, String> getUsers() {
+        return users;
+    }
+
+}
@@ -24,8 +24,11 @@ import io.kamax.matrix.MatrixID;
 import io.kamax.matrix._MatrixID;
 import io.kamax.matrix.bridge.email.config.matrix.EntityTemplateConfig;
 import io.kamax.matrix.bridge.email.config.matrix.HomeserverConfig;
+import io.kamax.matrix.bridge.email.config.matrix.MatrixCacheConfig;
 import io.kamax.matrix.bridge.email.config.subscription.MatrixNotificationConfig;
+import io.kamax.matrix.bridge.email.exception.InvalidConfigurationException;
 import io.kamax.matrix.bridge.email.model.BridgeEmailCodec;
+import io.kamax.matrix.bridge.email.model.ExpiringCache;
 import io.kamax.matrix.bridge.email.model._EndPoint;
 import io.kamax.matrix.bridge.email.model.subscription.SubscriptionPortalService;
 import io.kamax.matrix.client._MatrixClient;
@@ -39,9 +42,11 @@ import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Component
 public class MatrixManager implements _MatrixManager, InitializingBean {
@@ -51,6 +56,9 @@ public class MatrixManager implements _MatrixManager, InitializingBean {
     @Autowired
     private HomeserverConfig hsCfg;
 
+    @Autowired
+    private MatrixCacheConfig cacheCfg;
+
     @Autowired
     private MatrixNotificationConfig notifCfg;
 
@@ -62,17 +70,38 @@ public class MatrixManager implements _MatrixManager, InitializingBean {
 
     private _MatrixApplicationServiceClient mgr;
 
-    private List<Pattern> patterns;
-    private Map<String, _MatrixBridgeUser> vMxUsers = new HashMap<>();
-    private Map<String, MatrixEndPoint> endpoints = new HashMap<>();
+    private List<UserTemplateMatcher> matchers;
+    // Clients are cheap to re-create, so idle ones are evicted
+    private ExpiringCache<String, _MatrixBridgeUser> vMxUsers;
+
+    // Endpoints are held by their subscription, we only keep them while in use so the same instance is always returned
+    private Map<String, EndPointRef> endpoints = new ConcurrentHashMap<>();
+    private ReferenceQueue<MatrixEndPoint> endpointsCollected = new ReferenceQueue<>();
+
+    private static class EndPointRef extends WeakReference<MatrixEndPoint> {
+
+        private String key;
+
+        EndPointRef(String key, MatrixEndPoint ep, ReferenceQueue<MatrixEndPoint> queue) {
+            super(ep, queue);
+            this.key = key;
+        }
+
+    }
 
     @Override
     public void afterPropertiesSet() throws Exception {
-        patterns = new ArrayList<>();
+        vMxUsers = new ExpiringCache<>(cacheCfg.getClients(), cacheCfg.getClientIdle(), true);
+
+        matchers = new ArrayList<>();
         for (EntityTemplateConfig entityTemplate : hsCfg.getUsers()) {
-            patterns.add(Pattern.compile(entityTemplate.getTemplate().replace("%EMAIL%", "(?<email>.*)")));
+            try {
+                matchers.add(new UserTemplateMatcher(entityTemplate.getTemplate()));
+            } catch (IllegalArgumentException e) {
+                throw new InvalidConfigurationException(e.getMessage());
+            }
         }
-        if (patterns.size() < 1) {
+        if (matchers.size() < 1) {
             log.error("At least one user template must be configured");
             System.exit(1);
         }
@@ -81,11 +110,11 @@ public class MatrixManager implements _MatrixManager, InitializingBean {
         mgr = new MatrixApplicationServiceClient(hs, hsCfg.getAsToken(), hsCfg.getLocalpart());
     }
 
-    private Optional<Matcher> findMatcherForUser(_MatrixID mxId) {
-        for (Pattern p : patterns) {
-            Matcher m = p.matcher(mxId.getLocalPart());
-            if (m.matches()) {
-                return Optional.of(m);
+    private Optional<String> findEncodedEmail(_MatrixID mxId) {
+        for (UserTemplateMatcher m : matchers) {
+            Optional<String> encoded = m.match(mxId.getLocalPart());
+            if (encoded.isPresent()) {
+                return encoded;
             }
         }
 
@@ -94,12 +123,12 @@ public class MatrixManager implements _MatrixManager, InitializingBean {
 
     public Optional<_MatrixBridgeUser> findClientForUser(_MatrixID mxId) {
         return Optional.ofNullable(vMxUsers.computeIfAbsent(mxId.getId(), id -> {
-            Optional<Matcher> mOpt = findMatcherForUser(mxId);
-            if (!mOpt.isPresent()) {
+            Optional<String> encoded = findEncodedEmail(mxId);
+            if (!encoded.isPresent()) {
                 return null;
             }
 
-            String email = emailCodec.decode(mOpt.get().group("email"));
+            String email = emailCodec.decode(encoded.get());
 
             log.info("Creating new Matrix client for {} as {}", email, mxId);
             return new MatrixBridgeUser(mgr.getUser(mxId.getLocalPart()), email);
@@ -107,7 +136,7 @@ public class MatrixManager implements _MatrixManager, InitializingBean {
     }
 
     public boolean isOurUser(_MatrixID mxId) {
-        return vMxUsers.containsKey(mxId.getId()) || findMatcherForUser(mxId).isPresent();
+        return findEncodedEmail(mxId).isPresent();
     }
 
     @Override
@@ -119,17 +148,27 @@ public class MatrixManager implements _MatrixManager, InitializingBean {
         String id = getKey(client.getUser().getId(), roomId);
         MatrixEndPoint ep = new MatrixEndPoint(id, client, roomId, notifCfg, portalSvc);
         ep.addStateListener(this::destroyEndpoint);
-        endpoints.put(id, ep);
         return ep;
     }
 
     private void destroyEndpoint(_EndPoint ep) {
-        endpoints.remove(ep.getId());
+        endpoints.computeIfPresent(ep.getId(), (k, ref) -> ref.get() == ep ? null : ref);
+    }
+
+    private void removeCollectedEndpoints() {
+        Reference<? extends MatrixEndPoint> ref;
+        while ((ref = endpointsCollected.poll()) != null) {
+            endpoints.remove(((EndPointRef) ref).key, ref);
+        }
     }
 
     @Override
-    public synchronized MatrixEndPoint getEndpoint(String mxId, String roomId) {
-        MatrixEndPoint ep = endpoints.get(getKey(mxId, roomId));
+    public MatrixEndPoint getEndpoint(String mxId, String roomId) {
+        removeCollectedEndpoints();
+
+        String key = getKey(mxId, roomId);
+        EndPointRef ref = endpoints.get(key);
+        MatrixEndPoint ep = ref == null ? null : ref.get();
         if (ep != null) {
             return ep;
         }
@@ -139,7 +178,20 @@ public class MatrixManager implements _MatrixManager, InitializingBean {
             throw new IllegalArgumentException(mxId + " is not a Matrix bridge user");
         }
 
-        return createEndpoint(client.get().getClient(), roomId);
+        // Keeps the endpoint strongly reachable until returned
+        MatrixEndPoint[] holder = new MatrixEndPoint[1];
+        endpoints.compute(key, (k, current) -> {
+            MatrixEndPoint existing = current == null ? null : current.get();
+            if (existing != null) {
+                holder[0] = existing;
+                return current;
+            }
+
+            holder[0] = createEndpoint(client.get().getClient(), roomId);
+            return new EndPointRef(k, holder[0], endpointsCollected);
+        });
+
+        return holder[0];
     }
 
     public _MatrixApplicationServiceClient getClient() {
@@ -0,0 +1,157 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.model.matrix;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.kamax.matrix._MatrixUser;
+import io.kamax.matrix.bridge.email.config.matrix.MatrixAvatarConfig;
+import io.kamax.matrix.bridge.email.config.matrix.MatrixCacheConfig;
+import io.kamax.matrix.bridge.email.model.ExpiringCache;
+import io.kamax.matrix.client._MatrixClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of room names and user profiles fetched from the homeserver, shared by all notifications.
+ * Entries are invalidated when a room name or member event is received.
+ */
+@Component
+public class MatrixProfileCache implements InitializingBean, DisposableBean {
+
+    private Logger log = LoggerFactory.getLogger(MatrixProfileCache.class);
+
+    @Autowired
+    private MatrixCacheConfig cfg;
+
+    @Autowired
+    private MatrixAvatarConfig avatarCfg;
+
+    private ExpiringCache<String, String> roomNames;
+    private ExpiringCache<String, String> userNames;
+    private MatrixAvatarCache avatars;
+    private ScheduledExecutorService reporter;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        roomNames = new ExpiringCache<>(cfg.getRooms(), cfg.getTtl(), false);
+        userNames = new ExpiringCache<>(cfg.getUsers(), cfg.getTtl(), false);
+        avatars = new MatrixAvatarCache(avatarCfg);
+        avatars.init();
+
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r);
+            t.setName("matrix-cache");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleWithFixedDelay(this::report, 1, 1, TimeUnit.HOURS);
+
+        long pruneInterval = Math.max(avatarCfg.getTtl(), TimeUnit.MINUTES.toMillis(1));
+        reporter.scheduleWithFixedDelay(this::pruneAvatars, pruneInterval, pruneInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        reporter.shutdownNow();
+    }
+
+    private void report(String name, ExpiringCache<?, ?> cache) {
+        log.info("{} cache: {} entries, {} hit(s), {} miss(es), hit rate {}%",
+                name, cache.size(), cache.getHits(), cache.getMisses(), Math.round(cache.getHitRate() * 100));
+    }
+
+    private void pruneAvatars() {
+        try {
+            avatars.prune();
+        } catch (RuntimeException e) {
+            log.error("Error when pruning avatar cache", e);
+        }
+    }
+
+    private void report() {
+        report("Room name", roomNames);
+        report("User name", userNames);
+        report("User avatar", avatars.getUsers());
+        report("Avatar picture", avatars.getBlobs());
+    }
+
+    public String getRoomName(_MatrixClient client, String roomId) {
+        return roomNames.computeIfAbsent(roomId, id -> client.getRoom(id).getName().orElse(""));
+    }
+
+    public String getUserName(_MatrixUser user) {
+        return userNames.computeIfAbsent(user.getId().getId(), id -> user.getName().orElse(""));
+    }
+
+    public Optional<MatrixAvatar> getAvatar(_MatrixUser user) {
+        return avatars.get(user);
+    }
+
+    public void invalidateRoom(String roomId) {
+        roomNames.invalidate(roomId);
+    }
+
+    public void invalidateUser(String userId) {
+        userNames.invalidate(userId);
+        avatars.invalidate(userId);
+    }
+
+    private Optional<String> getString(JsonObject obj, String key) {
+        JsonElement el = obj.get(key);
+        return el == null || !el.isJsonPrimitive() ? Optional.empty() : Optional.of(el.getAsString());
+    }
+
+    /**
+     * Invalidate entries affected by an event received from the homeserver.
+     *
+     * @param event The raw event
+     */
+    public void onEvent(JsonObject event) {
+        Optional<String> type = getString(event, "type");
+        if (!type.isPresent()) {
+            return;
+        }
+
+        if ("m.room.name".equals(type.get())) {
+            getString(event, "room_id").ifPresent(roomId -> {
+                log.debug("Room {} name changed, invalidating", roomId);
+                invalidateRoom(roomId);
+            });
+        } else if ("m.room.member".equals(type.get())) {
+            // Profile changes are sent as member events
+            getString(event, "state_key").ifPresent(userId -> {
+                log.debug("User {} membership or profile changed, invalidating", userId);
+                invalidateUser(userId);
+            });
+        }
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.model.matrix;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import io.kamax.matrix.bridge.email.exception.InvalidBodyContentException;
+import io.kamax.matrix.event._MatrixEvent;
+import io.kamax.matrix.json.MatrixJsonEventFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Streaming parser of the transactions pushed by the homeserver.
+ * <p>
+ * Only the event types the bridge acts on are built into events. The other ones are read up to the fields
+ * needed to keep caches up to date, and the rest of their content is skipped.
+ */
+@Component
+public class MatrixTransactionParser {
+
+    private Logger log = LoggerFactory.getLogger(MatrixTransactionParser.class);
+
+    private static final Set<String> handledTypes = new HashSet<>(Arrays.asList("m.room.member", "m.room.message"));
+    private static final Set<String> headerFields = new HashSet<>(Arrays.asList("type", "room_id", "state_key", "sender"));
+
+    @Autowired
+    private MatrixProfileCache profiles;
+
+    private JsonParser jsonParser = new JsonParser();
+    private Predicate<JsonObject> filter = event -> true;
+
+    /**
+     * Set which of the handled events are built and returned.
+     * <p>
+     * Events of a room whose membership changed earlier in the same transaction are always kept, as the filter
+     * cannot see that change yet.
+     *
+     * @param filter Called with the raw event
+     */
+    public void setFilter(Predicate<JsonObject> filter) {
+        this.filter = filter;
+    }
+
+    private Optional<String> getString(JsonObject obj, String key) {
+        JsonElement el = obj.get(key);
+        return el == null || !el.isJsonPrimitive() ? Optional.empty() : Optional.of(el.getAsString());
+    }
+
+    private JsonObject readEvent(JsonReader reader) throws IOException {
+        JsonObject event = new JsonObject();
+        boolean handled = true;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (!handled && !headerFields.contains(name)) {
+                reader.skipValue();
+                continue;
+            }
+
+            JsonToken token = reader.peek();
+            if (!handled && (token == JsonToken.BEGIN_OBJECT || token == JsonToken.BEGIN_ARRAY)) {
+                reader.skipValue();
+                continue;
+            }
+
+            JsonElement value = jsonParser.parse(reader);
+            event.add(name, value);
+            if ("type".equals(name)) {
+                handled = value.isJsonPrimitive() && handledTypes.contains(value.getAsString());
+                if (!handled) {
+                    // Might have been read before the type, not needed anymore
+                    event.remove("content");
+                    event.remove("unsigned");
+                    event.remove("prev_content");
+                }
+            }
+        }
+        reader.endObject();
+
+        return event;
+    }
+
+    public List<_MatrixEvent> parse(Reader json) {
+        try {
+            JsonReader reader = new JsonReader(json);
+            List<_MatrixEvent> events = new ArrayList<>();
+            Set<String> memberRooms = new HashSet<>();
+            int skipped = 0;
+            boolean hasEvents = false;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"events".equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+
+                hasEvents = true;
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    JsonObject event = readEvent(reader);
+                    profiles.onEvent(event);
+
+                    String type = getString(event, "type").orElse("");
+                    if (!handledTypes.contains(type)) {
+                        skipped++;
+                        continue;
+                    }
+
+                    Optional<String> roomId = getString(event, "room_id");
+                    boolean memberRoom = roomId.isPresent() && memberRooms.contains(roomId.get());
+                    if (!memberRoom && !filter.test(event)) {
+                        skipped++;
+                        continue;
+                    }
+
+                    if ("m.room.member".equals(type)) {
+                        roomId.ifPresent(memberRooms::add);
+                    }
+                    events.add(MatrixJsonEventFactory.get(event));
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+
+            if (!hasEvents) {
+                throw new IllegalStateException("No events in transaction");
+            }
+
+            log.debug("Parsed {} event(s), skipped {}", events.size(), skipped);
+            return events;
+        } catch (IOException | IllegalStateException | JsonParseException e) {
+            throw new InvalidBodyContentException(e);
+        }
+    }
+
+    public List<_MatrixEvent> parse(String json) {
+        return parse(new StringReader(json));
+    }
+
+    /**
+     * Check the transaction is an object with an array of event objects, without building anything.
+     *
+     * @param json The transaction, as received
+     * @throws InvalidBodyContentException If the transaction could not be parsed
+     */
+    public void validate(String json) {
+        try {
+            JsonReader reader = new JsonReader(new StringReader(json));
+            boolean hasEvents = false;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"events".equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+
+                hasEvents = true;
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                        throw new IllegalStateException("Event is not an object");
+                    }
+                    reader.skipValue();
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+
+            if (!hasEvents) {
+                throw new IllegalStateException("No events in transaction");
+            }
+        } catch (IOException | IllegalStateException e) {
+            throw new InvalidBodyContentException(e);
+        }
+    }
+
+}
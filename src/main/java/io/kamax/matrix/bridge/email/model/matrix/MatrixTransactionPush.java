@@ -23,11 +23,13 @@ package io.kamax.matrix.bridge.email.model.matrix;
 import io.kamax.matrix.event._MatrixEvent;
 
 import java.util.List;
+import java.util.function.Supplier;
 
 public class MatrixTransactionPush extends AHomeserverCall {
 
     private String id;
-    private List<_MatrixEvent> events;
+    private String json;
+    private Supplier<List<_MatrixEvent>> events;
 
     public String getId() {
         return id;
@@ -37,11 +39,22 @@ public class MatrixTransactionPush extends AHomeserverCall {
         this.id = id;
     }
 
+    public String getJson() {
+        return json;
+    }
+
+    public void setJson(String json) {
+        this.json = json;
+    }
+
     public List<_MatrixEvent> getEvents() {
-        return events;
+        return events.get();
     }
 
-    public void setEvents(List<_MatrixEvent> events) {
+    /**
+     * @param events Parses the events when called, which must only happen once the call is authenticated
+     */
+    public void setEvents(Supplier<List<_MatrixEvent>> events) {
         this.events = events;
     }
 
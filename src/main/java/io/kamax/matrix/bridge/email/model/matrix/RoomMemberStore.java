@@ -0,0 +1,139 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.model.matrix;
+
+import io.kamax.matrix._MatrixID;
+import io.kamax.matrix.hs.RoomMembership;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Bridged members of rooms, kept up to date from membership events.
+ * <p>
+ * The members of a room are only fetched from the homeserver when the room is not known yet, or when its
+ * state is older than the configured time to live.
+ */
+public class RoomMemberStore {
+
+    private class Room {
+
+        private Set<_MatrixID> members = ConcurrentHashMap.newKeySet();
+        private volatile long loaded;
+
+    }
+
+    private Logger log = LoggerFactory.getLogger(RoomMemberStore.class);
+
+    private Function<String, List<_MatrixID>> loader;
+    private Predicate<_MatrixID> filter;
+    private long ttl;
+
+    private Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private AtomicLong updates = new AtomicLong();
+
+    /**
+     * @param loader Fetches the joined members of a room from the homeserver
+     * @param filter Members to keep track of
+     * @param ttl    Time, in milliseconds, after which the members of a room are fetched again. 0 to never fetch again
+     */
+    public RoomMemberStore(Function<String, List<_MatrixID>> loader, Predicate<_MatrixID> filter, long ttl) {
+        this.loader = loader;
+        this.filter = filter;
+        this.ttl = ttl;
+    }
+
+    private boolean isStale(Room room, long now) {
+        return room.loaded == 0 || (ttl > 0 && now - room.loaded >= ttl);
+    }
+
+    private Room load(String roomId) {
+        log.info("Fetching members of room {}", roomId);
+
+        long updatesBefore = updates.get();
+        Room room = new Room();
+        for (_MatrixID member : loader.apply(roomId)) {
+            if (filter.test(member)) {
+                room.members.add(member);
+            }
+        }
+
+        // Membership changes received while fetching might not be part of the result, so we fetch again next time
+        room.loaded = updates.get() == updatesBefore ? System.currentTimeMillis() : 0;
+        rooms.put(roomId, room);
+        return room;
+    }
+
+    /**
+     * Get the tracked members of a room, fetching them if needed.
+     *
+     * @param roomId The room ID
+     * @return A read-only view of the members
+     */
+    public Set<_MatrixID> get(String roomId) {
+        Room room = rooms.get(roomId);
+        if (room == null || isStale(room, System.currentTimeMillis())) {
+            room = load(roomId);
+        }
+
+        return Collections.unmodifiableSet(room.members);
+    }
+
+    /**
+     * Apply a membership change. Changes for rooms not yet known are ignored, they are fetched on first use.
+     *
+     * @param roomId     The room ID
+     * @param user       The user which membership changed
+     * @param membership The new membership
+     */
+    public void update(String roomId, _MatrixID user, String membership) {
+        if (!filter.test(user)) {
+            return;
+        }
+
+        updates.incrementAndGet();
+        Room room = rooms.get(roomId);
+        if (room == null) {
+            return;
+        }
+
+        if (RoomMembership.Join.is(membership)) {
+            room.members.add(user);
+        } else {
+            room.members.remove(user);
+        }
+
+        log.debug("Room {} now has {} bridged member(s)", roomId, room.members.size());
+    }
+
+    public void invalidate(String roomId) {
+        rooms.remove(roomId);
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.model.matrix;
+
+import java.util.Optional;
+
+/**
+ * Matches Matrix ID localparts against a virtual user template, like <code>email_%EMAIL%</code>.
+ * <p>
+ * The template is split around its token into a literal prefix and suffix, so matching is two string comparisons.
+ */
+public class UserTemplateMatcher {
+
+    public static final String TOKEN = "%EMAIL%";
+
+    private String prefix;
+    private String suffix;
+
+    public UserTemplateMatcher(String template) {
+        int tokenIndex = template.indexOf(TOKEN);
+        if (tokenIndex < 0 || template.indexOf(TOKEN, tokenIndex + TOKEN.length()) >= 0) {
+            throw new IllegalArgumentException("User template must contain " + TOKEN + " exactly once: " + template);
+        }
+
+        prefix = template.substring(0, tokenIndex);
+        suffix = template.substring(tokenIndex + TOKEN.length());
+    }
+
+    /**
+     * @param localpart The localpart to match
+     * @return The encoded e-mail part of the localpart, if it matches the template
+     */
+    public Optional<String> match(String localpart) {
+        if (localpart.length() < prefix.length() + suffix.length() ||
+                !localpart.startsWith(prefix) ||
+                !localpart.endsWith(suffix)) {
+            return Optional.empty();
+        }
+
+        return Optional.of(localpart.substring(prefix.length(), localpart.length() - suffix.length()));
+    }
+
+}
@@ -20,8 +20,11 @@
 
 package io.kamax.matrix.bridge.email.model.subscription;
 
+import io.kamax.matrix.bridge.email.model._EndPoint._EndPointMessageListener;
 import io.kamax.matrix.bridge.email.model._MessageFormatter;
+import io.kamax.matrix.bridge.email.model.email._EmailBridgeMessage;
 import io.kamax.matrix.bridge.email.model.email._EmailEndPoint;
+import io.kamax.matrix.bridge.email.model.matrix._MatrixBridgeMessage;
 import io.kamax.matrix.bridge.email.model.matrix._MatrixEndPoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +44,8 @@ public class BridgeSubscription implements _BridgeSubscription {
     private String mxKey;
     private _MatrixEndPoint mxEp;
     private _EmailEndPoint emEp;
+    private _EndPointMessageListener<_MatrixBridgeMessage> mxListener;
+    private _EndPointMessageListener<_EmailBridgeMessage> emListener;
 
     private boolean isClosed;
     private List<_BridgeSubscriptionListener> listeners = new ArrayList<>();
@@ -54,8 +59,10 @@ public class BridgeSubscription implements _BridgeSubscription {
         this.mxEp = mxEp;
         this.emEp = emEp;
 
-        mxEp.addMessageListener(msg -> emEp.sendMessage(this, formatter.format(msg)));
-        emEp.addMessageListener(msg -> mxEp.sendMessage(this, formatter.format(msg)));
+        mxListener = msg -> emEp.sendMessage(this, formatter.format(msg));
+        emListener = msg -> mxEp.sendMessage(this, formatter.format(msg));
+        mxEp.addMessageListener(mxListener);
+        emEp.addMessageListener(emListener);
     }
 
     @Override
@@ -150,6 +157,14 @@ public class BridgeSubscription implements _BridgeSubscription {
         }
     }
 
+    @Override
+    public void release() {
+        log.info("Releasing subscription {}", id);
+
+        mxEp.removeMessageListener(mxListener);
+        emEp.removeMessageListener(emListener);
+    }
+
     @Override
     public void addListener(_BridgeSubscriptionListener listener) {
         listeners.add(listener);
@@ -22,6 +22,7 @@ package io.kamax.matrix.bridge.email.model.subscription;
 
 import io.kamax.matrix._MatrixID;
 import io.kamax.matrix.bridge.email.config.subscription.MatrixNotificationConfig;
+import io.kamax.matrix.bridge.email.config.subscription.SubscriptionCacheConfig;
 import io.kamax.matrix.bridge.email.dao.BridgeSubscriptionDao;
 import io.kamax.matrix.bridge.email.dao._SubscriptionDao;
 import io.kamax.matrix.bridge.email.model._MessageFormatter;
@@ -31,18 +32,24 @@ import io.kamax.matrix.bridge.email.model.matrix._MatrixBridgeUser;
 import io.kamax.matrix.bridge.email.model.matrix._MatrixEndPoint;
 import io.kamax.matrix.bridge.email.model.matrix._MatrixManager;
 import io.kamax.matrix.client._MatrixClient;
+import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.lang.ref.WeakReference;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 @Component
-public class SubscriptionManager implements InitializingBean, _SubscriptionManager {
+public class SubscriptionManager implements InitializingBean, DisposableBean, _SubscriptionManager {
 
     private Logger log = LoggerFactory.getLogger(SubscriptionManager.class);
 
@@ -61,19 +68,55 @@ public class SubscriptionManager implements InitializingBean, _SubscriptionManag
     @Autowired
     private MatrixNotificationConfig mxNotifCfg;
 
-    private Map<String, _BridgeSubscription> subs = new HashMap<>();
-    private Map<String, WeakReference<_BridgeSubscription>> subsEmailKey = new HashMap<>();
-    private Map<String, WeakReference<_BridgeSubscription>> subsMatrixKey = new HashMap<>();
+    @Autowired
+    private SubscriptionCacheConfig cacheCfg;
+
+    private SubscriptionRegistry subs = new SubscriptionRegistry();
+
+    private Map<String, Long> lastUsed = new ConcurrentHashMap<>();
+    private ScheduledExecutorService releaser;
+
+    private static final int loadPageSize = 1000;
 
     @Override
     public void afterPropertiesSet() throws Exception {
-        List<BridgeSubscriptionDao> daoList = store.list();
+        if (cacheCfg.isLazy()) {
+            log.info("Persisted subscriptions will be loaded on demand");
+
+            // E-mails can only be delivered to an endpoint once its subscription is loaded
+            emMgr.setEndpointLoader(this::getWithEmailKey);
+
+            long interval = Math.min(cacheCfg.getIdle(), 60000);
+            releaser = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r);
+                t.setName("subscription-releaser");
+                t.setDaemon(true);
+                return t;
+            });
+            releaser.scheduleWithFixedDelay(this::releaseIdle, interval, interval, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        log.info("Loading persisted subscriptions");
 
-        log.info("Loading {} persisted subscriptions", daoList.size());
+        String lastId = null;
+        List<BridgeSubscriptionDao> daoList;
+        do {
+            daoList = store.list(lastId, loadPageSize);
+            for (BridgeSubscriptionDao dao : daoList) {
+                subs.add(build(dao));
+                log.info("Subscription {} loaded", dao.getSubId());
+                lastId = dao.getSubId();
+            }
+        } while (daoList.size() == loadPageSize);
 
-        for (BridgeSubscriptionDao dao : store.list()) {
-            build(dao.getSubId(), dao.getSourceMxId(), Instant.ofEpochMilli(dao.getTimestamp()), dao.getEmail(), dao.getThreadId(), dao.getMxId(), dao.getRoomId());
-            log.info("Subscription {} loaded", dao.getSubId());
+        log.info("Loaded {} persisted subscriptions", subs.size());
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (releaser != null) {
+            releaser.shutdownNow();
         }
     }
 
@@ -82,6 +125,7 @@ public class SubscriptionManager implements InitializingBean, _SubscriptionManag
 
         dao.setSubId(sub.getId());
         dao.setSourceMxId(sub.getInitiator());
+        dao.setTimestamp(sub.getCreation().toEpochMilli());
         dao.setEmail(sub.getEmailEndpoint().getIdentity());
         dao.setThreadId(sub.getEmailEndpoint().getChannelId());
         dao.setMxId(sub.getMatrixEndpoint().getIdentity().getId());
@@ -90,7 +134,7 @@ public class SubscriptionManager implements InitializingBean, _SubscriptionManag
         return dao;
     }
 
-    private synchronized _BridgeSubscription build(String subId, String sourceMxId, Instant timestamp, String email, String threadId, String mxId, String roomId) {
+    private _BridgeSubscription build(String subId, String sourceMxId, Instant timestamp, String email, String threadId, String mxId, String roomId) {
         log.info("Creating new subscription {} for email {} with threadId {} and matrix id {} in room {}",
                 subId,
                 email,
@@ -106,39 +150,102 @@ public class SubscriptionManager implements InitializingBean, _SubscriptionManag
         _BridgeSubscription sub = new BridgeSubscription(subId, sourceMxId, timestamp, formatter, eKey, emEp, mKey, mxEp);
         sub.addListener(this::remove);
 
-        subs.put(subId, sub);
-        subsEmailKey.put(eKey, new WeakReference<>(sub));
-        subsMatrixKey.put(mKey, new WeakReference<>(sub));
-
         return sub;
     }
 
-    private synchronized _BridgeSubscription create(_MatrixID initiator, Instant time, String subId, String email, String threadId, String mxId, String roomId) {
+    private _BridgeSubscription build(BridgeSubscriptionDao dao) {
+        return build(dao.getSubId(), dao.getSourceMxId(), Instant.ofEpochMilli(dao.getTimestamp()), dao.getEmail(), dao.getThreadId(), dao.getMxId(), dao.getRoomId());
+    }
+
+    private _BridgeSubscription create(_MatrixID initiator, Instant time, String subId, String email, String threadId, String mxId, String roomId) {
         _BridgeSubscription sub = build(subId, initiator.getId(), time, email, threadId, mxId, roomId);
+        subs.add(sub);
         store.store(serialize(sub));
+        touch(sub);
         return sub;
     }
 
-    private synchronized _BridgeSubscription remove(_BridgeSubscription sub) {
+    private _BridgeSubscription remove(_BridgeSubscription sub) {
         if (sub == null) {
             return null;
         }
 
         log.info("Removing subscription {}", sub.getId());
-        subsEmailKey.remove(sub.getEmailKey());
-        subsMatrixKey.remove(sub.getMatrixKey());
         subs.remove(sub.getId());
+        lastUsed.remove(sub.getId());
         store.delete(sub.getId());
 
         return sub;
     }
 
+    private _BridgeSubscription touch(_BridgeSubscription sub) {
+        if (cacheCfg.isLazy()) {
+            lastUsed.put(sub.getId(), System.currentTimeMillis());
+        }
+
+        return sub;
+    }
+
+    private Optional<_BridgeSubscription> load(String subId) {
+        // Marked as used first, so it cannot be released while being returned
+        lastUsed.put(subId, System.currentTimeMillis());
+        Optional<_BridgeSubscription> sub = subs.computeIfAbsent(subId, id -> store.get(id).map(dao -> {
+            log.info("Loading subscription {}", id);
+            return build(dao);
+        }).orElse(null));
+
+        if (!sub.isPresent()) {
+            lastUsed.remove(subId);
+        }
+
+        return sub;
+    }
+
+    private Optional<_BridgeSubscription> load(Optional<_BridgeSubscription> loaded, Supplier<Optional<BridgeSubscriptionDao>> stored) {
+        // Loaded through its ID even when in memory, so it is marked as used
+        Optional<String> subId = loaded.map(_BridgeSubscription::getId);
+        if (!subId.isPresent()) {
+            subId = stored.get().map(BridgeSubscriptionDao::getSubId);
+        }
+
+        return subId.flatMap(this::load);
+    }
+
+    private List<_BridgeSubscription> load(List<BridgeSubscriptionDao> daoList) {
+        List<_BridgeSubscription> subList = new ArrayList<>();
+        for (BridgeSubscriptionDao dao : daoList) {
+            load(dao.getSubId()).ifPresent(subList::add);
+        }
+        return subList;
+    }
+
+    private void releaseIdle() {
+        try {
+            long idleSince = System.currentTimeMillis() - cacheCfg.getIdle();
+            int released = 0;
+            for (Map.Entry<String, Long> entry : lastUsed.entrySet()) {
+                if (entry.getValue() < idleSince && lastUsed.remove(entry.getKey(), entry.getValue())) {
+                    // Not released if it was used in the meantime
+                    if (subs.release(entry.getKey(), sub -> !lastUsed.containsKey(sub.getId()))) {
+                        released++;
+                    }
+                }
+            }
+
+            if (released > 0) {
+                log.info("Released {} idle subscription(s), {} still loaded", released, subs.size());
+            }
+        } catch (RuntimeException e) {
+            log.error("Error when releasing idle subscriptions", e);
+        }
+    }
+
     @Override
     public _BridgeSubscription create(_MatrixID initiator, Instant time, _MatrixBridgeUser user, String roomId) {
         String subId;
         do {
             subId = UUID.randomUUID().toString();
-        } while (subs.containsKey(subId));
+        } while (subs.contains(subId));
 
         String threadId = subId.replace("-", "");
 
@@ -149,43 +256,55 @@ public class SubscriptionManager implements InitializingBean, _SubscriptionManag
     public Optional<_BridgeSubscription> find(String email, _MatrixClient mxUser, String roomId) {
         String mxId = mxUser.getUser().getId();
 
-        return getWithMatrixKey(mxMgr.getKey(mxId, roomId));
+        return getWithMatrixId(mxId, roomId);
     }
 
-    private Optional<_BridgeSubscription> validateExisting(String key, Map<String, WeakReference<_BridgeSubscription>> subs) {
-        WeakReference<_BridgeSubscription> ref = subs.get(key);
-        if (ref != null) {
-            _BridgeSubscription sub = ref.get();
-            if (sub != null) {
-                return Optional.of(sub);
-            } else {
-                log.warn("Found existing mapping for obsolete key {}", key);
-            }
+    @Override
+    public Optional<_BridgeSubscription> getWithEmailKey(String emailKey) {
+        if (!cacheCfg.isLazy()) {
+            return subs.getWithEmailKey(emailKey);
         }
 
-        return Optional.empty();
+        // E-mail keys are thread IDs, checked in case this changes
+        return load(subs.getWithEmailKey(emailKey), () -> store.getWithThreadId(emailKey)
+                .filter(dao -> StringUtils.equals(emailKey, emMgr.getKey(dao.getEmail(), dao.getThreadId()))));
     }
 
     @Override
-    public Optional<_BridgeSubscription> getWithEmailKey(String emailKey) {
-        return validateExisting(emailKey, subsEmailKey);
+    public Optional<_BridgeSubscription> getWithMatrixId(String mxId, String roomId) {
+        String matrixKey = mxMgr.getKey(mxId, roomId);
+        if (!cacheCfg.isLazy()) {
+            return subs.getWithMatrixKey(matrixKey);
+        }
+
+        return load(subs.getWithMatrixKey(matrixKey), () -> store.getWithMatrixId(mxId, roomId));
     }
 
     @Override
-    public Optional<_BridgeSubscription> getWithMatrixKey(String matrixKey) {
-        return validateExisting(matrixKey, subsMatrixKey);
+    public List<_BridgeSubscription> listForEmail(String email) {
+        if (!cacheCfg.isLazy()) {
+            return subs.listForEmail(email);
+        }
+
+        return load(store.listForEmail(email));
     }
 
     @Override
-    public List<_BridgeSubscription> listForEmail(String email) {
-        List<_BridgeSubscription> subList = new ArrayList<>();
+    public List<_BridgeSubscription> listForMatrixId(String mxId) {
+        if (!cacheCfg.isLazy()) {
+            return subs.listForMatrixId(mxId);
+        }
 
-        for (_BridgeSubscription sub : subs.values()) {
-            if (sub.getEmailEndpoint().getIdentity().contentEquals(email)) {
-                subList.add(sub);
-            }
+        return load(store.listForMatrixId(mxId));
+    }
+
+    @Override
+    public List<_BridgeSubscription> listForRoom(String roomId) {
+        if (!cacheCfg.isLazy()) {
+            return subs.listForRoom(roomId);
         }
-        return subList;
+
+        return load(store.listForRoom(roomId));
     }
 
 }
@@ -0,0 +1,189 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.model.subscription;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Subscriptions indexed by ID, endpoint keys, e-mail address, Matrix ID and room.
+ * <p>
+ * Lookups do not lock. Changes to a subscription lock one of a fixed set of stripes picked from its ID, so changes
+ * to different subscriptions rarely wait on each other.
+ */
+public class SubscriptionRegistry {
+
+    private static final int stripeCount = 64;
+
+    private Object[] stripes = new Object[stripeCount];
+
+    private Map<String, _BridgeSubscription> byId = new ConcurrentHashMap<>();
+    private Map<String, _BridgeSubscription> byEmailKey = new ConcurrentHashMap<>();
+    private Map<String, _BridgeSubscription> byMatrixKey = new ConcurrentHashMap<>();
+    private Map<String, Set<_BridgeSubscription>> byEmail = new ConcurrentHashMap<>();
+    private Map<String, Set<_BridgeSubscription>> byMxId = new ConcurrentHashMap<>();
+    private Map<String, Set<_BridgeSubscription>> byRoom = new ConcurrentHashMap<>();
+
+    public SubscriptionRegistry() {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    private Object getLock(String subId) {
+        return stripes[(subId.hashCode() & 0x7fffffff) % stripes.length];
+    }
+
+    private void index(Map<String, Set<_BridgeSubscription>> index, String key, _BridgeSubscription sub) {
+        index.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(sub);
+    }
+
+    private void unindex(Map<String, Set<_BridgeSubscription>> index, String key, _BridgeSubscription sub) {
+        index.computeIfPresent(key, (k, subs) -> {
+            subs.remove(sub);
+            return subs.isEmpty() ? null : subs;
+        });
+    }
+
+    private List<_BridgeSubscription> list(Map<String, Set<_BridgeSubscription>> index, String key) {
+        Set<_BridgeSubscription> subs = index.get(key);
+        return subs == null ? Collections.emptyList() : new ArrayList<>(subs);
+    }
+
+    private String getMxId(_BridgeSubscription sub) {
+        return sub.getMatrixEndpoint().getIdentity().getId();
+    }
+
+    /**
+     * Add a subscription, replacing any subscription with the same ID.
+     */
+    public void add(_BridgeSubscription sub) {
+        synchronized (getLock(sub.getId())) {
+            remove(sub.getId());
+
+            byId.put(sub.getId(), sub);
+            byEmailKey.put(sub.getEmailKey(), sub);
+            byMatrixKey.put(sub.getMatrixKey(), sub);
+            index(byEmail, sub.getEmailEndpoint().getIdentity(), sub);
+            index(byMxId, getMxId(sub), sub);
+            index(byRoom, sub.getMatrixEndpoint().getChannelId(), sub);
+        }
+    }
+
+    /**
+     * @return The removed subscription, if it was present
+     */
+    public Optional<_BridgeSubscription> remove(String subId) {
+        synchronized (getLock(subId)) {
+            _BridgeSubscription sub = byId.remove(subId);
+            if (sub == null) {
+                return Optional.empty();
+            }
+
+            // Keys might have been taken over by a newer subscription
+            byEmailKey.remove(sub.getEmailKey(), sub);
+            byMatrixKey.remove(sub.getMatrixKey(), sub);
+            unindex(byEmail, sub.getEmailEndpoint().getIdentity(), sub);
+            unindex(byMxId, getMxId(sub), sub);
+            unindex(byRoom, sub.getMatrixEndpoint().getChannelId(), sub);
+
+            return Optional.of(sub);
+        }
+    }
+
+    /**
+     * Get a subscription, loading and adding it if absent. Concurrent calls for the same ID only load it once.
+     *
+     * @param loader Returns the subscription, or null if it does not exist
+     */
+    public Optional<_BridgeSubscription> computeIfAbsent(String subId, Function<String, _BridgeSubscription> loader) {
+        _BridgeSubscription sub = byId.get(subId);
+        if (sub != null) {
+            return Optional.of(sub);
+        }
+
+        synchronized (getLock(subId)) {
+            sub = byId.get(subId);
+            if (sub == null) {
+                sub = loader.apply(subId);
+                if (sub != null) {
+                    add(sub);
+                }
+            }
+
+            return Optional.ofNullable(sub);
+        }
+    }
+
+    /**
+     * Remove a subscription from memory only, detaching it from its endpoints.
+     *
+     * @param condition Checked while no other change can be made to the subscription
+     * @return true if the subscription was present and released
+     */
+    public boolean release(String subId, Predicate<_BridgeSubscription> condition) {
+        synchronized (getLock(subId)) {
+            _BridgeSubscription current = byId.get(subId);
+            if (current == null || !condition.test(current)) {
+                return false;
+            }
+
+            Optional<_BridgeSubscription> sub = remove(subId);
+            sub.ifPresent(_BridgeSubscription::release);
+            return sub.isPresent();
+        }
+    }
+
+    public boolean contains(String subId) {
+        return byId.containsKey(subId);
+    }
+
+    public Optional<_BridgeSubscription> get(String subId) {
+        return Optional.ofNullable(byId.get(subId));
+    }
+
+    public Optional<_BridgeSubscription> getWithEmailKey(String emailKey) {
+        return Optional.ofNullable(byEmailKey.get(emailKey));
+    }
+
+    public Optional<_BridgeSubscription> getWithMatrixKey(String matrixKey) {
+        return Optional.ofNullable(byMatrixKey.get(matrixKey));
+    }
+
+    public List<_BridgeSubscription> listForEmail(String email) {
+        return list(byEmail, email);
+    }
+
+    public List<_BridgeSubscription> listForMatrixId(String mxId) {
+        return list(byMxId, mxId);
+    }
+
+    public List<_BridgeSubscription> listForRoom(String roomId) {
+        return list(byRoom, roomId);
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+}
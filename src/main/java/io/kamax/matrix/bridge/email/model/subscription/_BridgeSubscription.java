@@ -52,6 +52,12 @@ public interface _BridgeSubscription {
 
     void terminate(String source, String reason);
 
+    /**
+     * Stop forwarding messages between the endpoints, without terminating the subscription.
+     * Used when the subscription is unloaded from memory, to be loaded again on next use.
+     */
+    void release();
+
     void addListener(_BridgeSubscriptionListener listener);
 
 }
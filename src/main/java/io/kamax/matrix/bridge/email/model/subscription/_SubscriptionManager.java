@@ -36,8 +36,12 @@ public interface _SubscriptionManager {
 
     Optional<_BridgeSubscription> getWithEmailKey(String emailKey);
 
-    Optional<_BridgeSubscription> getWithMatrixKey(String matrixKey);
+    Optional<_BridgeSubscription> getWithMatrixId(String mxId, String roomId);
 
     List<_BridgeSubscription> listForEmail(String email);
 
+    List<_BridgeSubscription> listForMatrixId(String mxId);
+
+    List<_BridgeSubscription> listForRoom(String roomId);
+
 }
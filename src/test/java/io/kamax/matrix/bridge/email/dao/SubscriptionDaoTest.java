@@ -0,0 +1,187 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.dao;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Behaviour expected from every subscription storage.
+ */
+public abstract class SubscriptionDaoTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private _SubscriptionDao store;
+
+    /**
+     * @param dir Directory in which the storage keeps its files
+     * @return An initialized storage
+     */
+    protected abstract _SubscriptionDao open(File dir) throws Exception;
+
+    protected void close() throws Exception {
+        if (store instanceof DisposableBean) {
+            ((DisposableBean) store).destroy();
+        }
+        store = null;
+    }
+
+    protected _SubscriptionDao reopen() throws Exception {
+        close();
+        store = open(dir);
+        return store;
+    }
+
+    protected _SubscriptionDao getStore() {
+        return store;
+    }
+
+    protected static BridgeSubscriptionDao build(String id, String email, String mxId, String roomId) {
+        BridgeSubscriptionDao dao = new BridgeSubscriptionDao();
+        dao.setSubId(id);
+        dao.setSourceMxId("@john:example.org");
+        dao.setTimestamp(1500000000000L);
+        dao.setEmail(email);
+        dao.setThreadId("thread-" + id);
+        dao.setMxId(mxId);
+        dao.setRoomId(roomId);
+        return dao;
+    }
+
+    private static List<String> ids(List<BridgeSubscriptionDao> daoList) {
+        return daoList.stream().map(BridgeSubscriptionDao::getSubId).sorted().collect(Collectors.toList());
+    }
+
+    @Before
+    public void before() throws Exception {
+        dir = folder.newFolder();
+        store = open(dir);
+    }
+
+    @After
+    public void after() throws Exception {
+        close();
+    }
+
+    @Test
+    public void storeAndGet() {
+        BridgeSubscriptionDao dao = build("a", "a@example.org", "@_email_a:example.org", "!room1:example.org");
+        dao.setSourceMxId(null);
+        store.store(dao);
+
+        BridgeSubscriptionDao stored = store.get("a").orElseThrow(AssertionError::new);
+        assertEquals("a", stored.getSubId());
+        assertNull(stored.getSourceMxId());
+        assertEquals(1500000000000L, stored.getTimestamp());
+        assertEquals("a@example.org", stored.getEmail());
+        assertEquals("thread-a", stored.getThreadId());
+        assertEquals("@_email_a:example.org", stored.getMxId());
+        assertEquals("!room1:example.org", stored.getRoomId());
+        assertFalse(store.get("b").isPresent());
+    }
+
+    @Test
+    public void storeReplaces() {
+        store.store(build("a", "a@example.org", "@_email_a:example.org", "!room1:example.org"));
+        store.store(build("a", "a@example.org", "@_email_a:example.org", "!room2:example.org"));
+
+        assertEquals(1, store.list().size());
+        assertEquals("!room2:example.org", store.get("a").map(BridgeSubscriptionDao::getRoomId).orElse(null));
+        assertTrue(store.listForRoom("!room1:example.org").isEmpty());
+        assertEquals(1, store.listForRoom("!room2:example.org").size());
+    }
+
+    @Test
+    public void delete() {
+        store.store(build("a", "a@example.org", "@_email_a:example.org", "!room1:example.org"));
+        store.delete("a");
+        store.delete("b");
+
+        assertFalse(store.get("a").isPresent());
+        assertFalse(store.getWithThreadId("thread-a").isPresent());
+        assertTrue(store.listForEmail("a@example.org").isEmpty());
+        assertTrue(store.list().isEmpty());
+    }
+
+    @Test
+    public void lookups() {
+        store.store(build("a", "a@example.org", "@_email_a:example.org", "!room1:example.org"));
+        store.store(build("b", "a@example.org", "@_email_a:example.org", "!room2:example.org"));
+        store.store(build("c", "c@example.org", "@_email_c:example.org", "!room1:example.org"));
+
+        assertEquals("b", store.getWithThreadId("thread-b").map(BridgeSubscriptionDao::getSubId).orElse(null));
+        assertFalse(store.getWithThreadId("thread-d").isPresent());
+        assertEquals("b", store.getWithMatrixId("@_email_a:example.org", "!room2:example.org").map(BridgeSubscriptionDao::getSubId).orElse(null));
+        assertFalse(store.getWithMatrixId("@_email_c:example.org", "!room2:example.org").isPresent());
+
+        assertEquals(Arrays.asList("a", "b"), ids(store.listForEmail("a@example.org")));
+        assertEquals(Collections.singletonList("c"), ids(store.listForMatrixId("@_email_c:example.org")));
+        assertEquals(Arrays.asList("a", "c"), ids(store.listForRoom("!room1:example.org")));
+        assertTrue(store.listForRoom("!room3:example.org").isEmpty());
+    }
+
+    @Test
+    public void pagedList() {
+        for (int i = 0; i < 25; i++) {
+            store.store(build(String.format("%02d", i), "a@example.org", "@_email_a:example.org", "!room" + i + ":example.org"));
+        }
+
+        List<BridgeSubscriptionDao> page = store.list(null, 10);
+        assertEquals(10, page.size());
+        assertEquals("00", page.get(0).getSubId());
+        assertEquals("09", page.get(9).getSubId());
+
+        page = store.list("19", 10);
+        assertEquals(5, page.size());
+        assertEquals("20", page.get(0).getSubId());
+
+        assertTrue(store.list("24", 10).isEmpty());
+    }
+
+    @Test
+    public void persisted() throws Exception {
+        store.store(build("a", "a@example.org", "@_email_a:example.org", "!room1:example.org"));
+        store.store(build("b", "b@example.org", "@_email_b:example.org", "!room1:example.org"));
+        store.delete("a");
+
+        reopen();
+
+        assertFalse(store.get("a").isPresent());
+        assertEquals("b@example.org", store.get("b").map(BridgeSubscriptionDao::getEmail).orElse(null));
+        assertEquals(1, store.listForRoom("!room1:example.org").size());
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.dao.log;
+
+import io.kamax.matrix.bridge.email.config.dao.SubscriptionLogConfig;
+import io.kamax.matrix.bridge.email.dao.SubscriptionDaoTest;
+import io.kamax.matrix.bridge.email.dao._SubscriptionDao;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class SubscriptionLogTest extends SubscriptionDaoTest {
+
+    private File file;
+
+    @Override
+    protected _SubscriptionDao open(File dir) throws Exception {
+        file = new File(dir, "as-subscriptions.log");
+
+        SubscriptionLogConfig cfg = new SubscriptionLogConfig();
+        cfg.setLocation(file.getAbsolutePath());
+        cfg.setGrowth(4096);
+        cfg.afterPropertiesSet();
+
+        SubscriptionLog store = new SubscriptionLog(cfg);
+        store.afterPropertiesSet();
+        return store;
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            getStore().store(build(Integer.toString(i), "a@example.org", "@_email_a:example.org", "!room:example.org"));
+        }
+        for (int i = 0; i < 100; i += 2) {
+            getStore().delete(Integer.toString(i));
+        }
+
+        SubscriptionLog store = (SubscriptionLog) getStore();
+        store.compact();
+        store.store(build("100", "a@example.org", "@_email_a:example.org", "!room:example.org"));
+
+        _SubscriptionDao reopened = reopen();
+        assertEquals(51, reopened.list().size());
+        assertFalse(reopened.get("0").isPresent());
+        assertTrue(reopened.get("1").isPresent());
+        assertTrue(reopened.get("100").isPresent());
+        assertEquals(51, reopened.listForRoom("!room:example.org").size());
+    }
+
+    @Test
+    public void ignoresTruncatedRecord() throws Exception {
+        getStore().store(build("a", "a@example.org", "@_email_a:example.org", "!room:example.org"));
+        getStore().store(build("b", "b@example.org", "@_email_b:example.org", "!room:example.org"));
+        close();
+
+        // Corrupt the end of the last record, as if the bridge crashed while writing it
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long last = raf.length() - 1;
+            while (last > 0) {
+                raf.seek(last);
+                if (raf.read() != 0) {
+                    break;
+                }
+                last--;
+            }
+            raf.seek(last);
+            raf.write(0x55);
+        }
+
+        _SubscriptionDao reopened = reopen();
+        assertTrue(reopened.get("a").isPresent());
+        assertFalse(reopened.get("b").isPresent());
+
+        reopened.store(build("c", "c@example.org", "@_email_c:example.org", "!room:example.org"));
+        reopened = reopen();
+        assertEquals(2, reopened.list().size());
+        assertTrue(reopened.get("c").isPresent());
+    }
+
+}
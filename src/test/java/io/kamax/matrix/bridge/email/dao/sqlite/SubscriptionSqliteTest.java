@@ -0,0 +1,42 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.dao.sqlite;
+
+import io.kamax.matrix.bridge.email.config.dao.SubscriptionSqliteConfig;
+import io.kamax.matrix.bridge.email.dao.SubscriptionDaoTest;
+import io.kamax.matrix.bridge.email.dao._SubscriptionDao;
+
+import java.io.File;
+
+public class SubscriptionSqliteTest extends SubscriptionDaoTest {
+
+    @Override
+    protected _SubscriptionDao open(File dir) throws Exception {
+        SubscriptionSqliteConfig cfg = new SubscriptionSqliteConfig();
+        cfg.setLocation(new File(dir, "as-subscriptions.db").getAbsolutePath());
+        cfg.afterPropertiesSet();
+
+        SubscriptionSqlite store = new SubscriptionSqlite(cfg);
+        store.afterPropertiesSet();
+        return store;
+    }
+
+}
@@ -26,6 +26,7 @@ import org.junit.Test;
 import java.util.Arrays;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class BridgeEmailCodecTest {
@@ -35,7 +36,11 @@ public class BridgeEmailCodecTest {
             new String[]{".abá12_", ".ab=c3=a112_"},
             new String[]{"john.doe@example.org", "john.doe=40example.org"},
             new String[]{"john.doe@sub.example.org", "john.doe=40sub.example.org"},
-            new String[]{"わたし@example.org", "=e3=82=8f=e3=81=9f=e3=81=97=40example.org"}
+            new String[]{"わたし@example.org", "=e3=82=8f=e3=81=9f=e3=81=97=40example.org"},
+            new String[]{"john+doe@example.org", "john=2bdoe=40example.org"},
+            new String[]{"a@b@c", "a=40b=40c"},
+            new String[]{"\uD83D\uDE00@example.org", "=f0=9f=98=80=40example.org"},
+            new String[]{"\uDB77\uDC09", "=f3=ad=b0=89"}
     );
 
     private static BridgeEmailCodec codec;
@@ -60,4 +65,36 @@ public class BridgeEmailCodecTest {
             assertTrue(pair[1] + " -> " + d, pair[0].contentEquals(d));
         }
     }
+
+    @Test
+    public void encodeLowercases() {
+        assertEquals("john.doe=40example.org", codec.encode("John.Doe@Example.ORG"));
+    }
+
+    @Test
+    public void decodeKeepsUnescaped() {
+        assertEquals("abc", codec.decode("abc"));
+        assertEquals("a=zz", codec.decode("a=zz"));
+        assertEquals("a=4", codec.decode("a=4"));
+    }
+
+    @Test
+    public void decodeReplacesOverlong() {
+        assertEquals("\uFFFD\uFFFDa", codec.decode("=c0=afa"));
+        assertEquals("\uFFFD\uFFFD\uFFFD", codec.decode("=e0=80=af"));
+        assertEquals("\uFFFD\uFFFD\uFFFD\uFFFD", codec.decode("=f0=80=80=af"));
+    }
+
+    @Test
+    public void decodeReplacesSurrogates() {
+        assertEquals("\uFFFD\uFFFD\uFFFD", codec.decode("=ed=a0=80"));
+        assertEquals("a\uFFFD\uFFFD\uFFFDb", codec.decode("a=ed=bf=bfb"));
+    }
+
+    @Test
+    public void decodeReplacesTruncated() {
+        assertEquals("\uFFFD", codec.decode("=f0=9f=98"));
+        assertEquals("\uFFFDA", codec.decode("=e3=82=41"));
+        assertEquals("\uFFFD\uFFFD\uFFFD\uFFFD", codec.decode("=f4=90=80=80"));
+    }
 }
@@ -0,0 +1,107 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class ExpiringCacheTest {
+
+    private AtomicLong now;
+
+    @Before
+    public void before() {
+        now = new AtomicLong(1000);
+    }
+
+    @Test
+    public void expiresAfterWrite() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 100, false, now::get);
+        cache.put("a", "1");
+
+        now.addAndGet(99);
+        assertEquals(Optional.of("1"), cache.get("a"));
+
+        now.addAndGet(1);
+        assertFalse(cache.get("a").isPresent());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void expiresAfterAccess() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 100, true, now::get);
+        cache.put("a", "1");
+
+        now.addAndGet(60);
+        assertTrue(cache.get("a").isPresent());
+        now.addAndGet(60);
+        assertTrue(cache.get("a").isPresent());
+        now.addAndGet(100);
+        assertFalse(cache.get("a").isPresent());
+    }
+
+    @Test
+    public void evictsLeastRecentlyAccessed() {
+        ExpiringCache<Integer, Integer> cache = new ExpiringCache<>(10, 0, false, now::get);
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, i);
+            now.incrementAndGet();
+        }
+
+        cache.get(0);
+        now.incrementAndGet();
+        cache.put(10, 10);
+
+        assertTrue(cache.size() <= 10);
+        assertTrue(cache.get(0).isPresent());
+        assertTrue(cache.get(10).isPresent());
+        assertFalse(cache.get(1).isPresent());
+        assertTrue(cache.getEvictions() > 0);
+    }
+
+    @Test
+    public void putIfAbsent() {
+        ExpiringCache<String, Boolean> cache = new ExpiringCache<>(10, 100, false, now::get);
+        assertFalse(cache.putIfAbsent("txn1", true).isPresent());
+        assertTrue(cache.putIfAbsent("txn1", true).isPresent());
+
+        now.addAndGet(100);
+        assertFalse(cache.putIfAbsent("txn1", true).isPresent());
+    }
+
+    @Test
+    public void loadsOnce() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 0, false, now::get);
+        AtomicLong loads = new AtomicLong();
+        cache.computeIfAbsent("a", k -> k + loads.incrementAndGet());
+        assertEquals("a1", cache.computeIfAbsent("a", k -> k + loads.incrementAndGet()));
+        assertEquals(1, loads.get());
+        assertNull(cache.computeIfAbsent("b", k -> null));
+        assertEquals(1, cache.size());
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.model.email;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EmailTemplateTextTest {
+
+    private Map<EmailTemplateToken, String> values = new HashMap<>();
+
+    private String render(EmailTemplateText text) {
+        return text.render(values::get);
+    }
+
+    @Test
+    public void renderTokens() {
+        values.put(EmailTemplateToken.Sender, "John");
+        values.put(EmailTemplateToken.SenderName, "John Doe");
+        values.put(EmailTemplateToken.Room, "Lobby");
+
+        assertEquals("John Doe (John) in Lobby", render(EmailTemplateText.parse("%SENDER_NAME% (%SENDER%) in %ROOM%")));
+        assertEquals("John", render(EmailTemplateText.parse("%SENDER%")));
+        assertEquals("", render(EmailTemplateText.parse("")));
+    }
+
+    @Test
+    public void keepUnknownAndMissing() {
+        values.put(EmailTemplateToken.Sender, "John");
+
+        assertEquals("100% %NOT_A_TOKEN% %ROOM% John", render(EmailTemplateText.parse("100% %NOT_A_TOKEN% %ROOM% %SENDER%")));
+        assertEquals("%%John%", render(EmailTemplateText.parse("%%%SENDER%%")));
+    }
+
+    @Test
+    public void valuesAreNotRendered() {
+        values.put(EmailTemplateToken.Sender, "%ROOM%");
+        values.put(EmailTemplateToken.Room, "Lobby");
+
+        assertEquals("%ROOM% in Lobby", render(EmailTemplateText.parse("%SENDER% in %ROOM%")));
+    }
+
+    @Test
+    public void splitBlock() {
+        values.put(EmailTemplateToken.MsgContent, "Hello");
+        EmailTemplateText text = EmailTemplateText.parse("<ul>%MSG_BLOCK_START%<li>%MSG_CONTENT%</li>%MSG_BLOCK_END%</ul>");
+
+        assertTrue(text.contains(EmailTemplateToken.MsgContent));
+        assertFalse(text.contains(EmailTemplateToken.SenderAvatar));
+        assertEquals("<ul>", render(text.getPrefix()));
+        assertEquals("<li>Hello</li>", render(text.getBlock()));
+        assertEquals("</ul>", render(text.getSuffix()));
+    }
+
+    @Test
+    public void noBlock() {
+        values.put(EmailTemplateToken.MsgContent, "Hello");
+        EmailTemplateText text = EmailTemplateText.parse("<p>%MSG_CONTENT%</p>");
+
+        assertEquals("", render(text.getPrefix()));
+        assertEquals("<p>Hello</p>", render(text.getBlock()));
+        assertEquals("", render(text.getSuffix()));
+    }
+
+    @Test
+    public void bindThenRender() {
+        values.put(EmailTemplateToken.Sender, "John");
+        values.put(EmailTemplateToken.MsgContent, "%RECEIVER_ADDRESS%");
+        EmailTemplateText text = new EmailTemplateText.Builder()
+                .append(EmailTemplateText.parse("To %RECEIVER_ADDRESS% from %SENDER%: "), values::get)
+                .append(EmailTemplateText.parse("%MSG_CONTENT%"), values::get)
+                .build();
+
+        values.clear();
+        values.put(EmailTemplateToken.ReceiverAddress, "jane@example.org");
+        assertEquals("To jane@example.org from John: %RECEIVER_ADDRESS%", render(text));
+    }
+
+}
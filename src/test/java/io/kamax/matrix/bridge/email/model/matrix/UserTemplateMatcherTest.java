@@ -0,0 +1,59 @@
+/*
+ * matrix-appservice-email - Matrix Bridge to E-mail
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.email.model.matrix;
+
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class UserTemplateMatcherTest {
+
+    @Test
+    public void prefix() {
+        UserTemplateMatcher m = new UserTemplateMatcher("email_%EMAIL%");
+        assertEquals(Optional.of("john.doe=40example.org"), m.match("email_john.doe=40example.org"));
+        assertEquals(Optional.of(""), m.match("email_"));
+        assertFalse(m.match("john").isPresent());
+        assertFalse(m.match("emailjohn").isPresent());
+    }
+
+    @Test
+    public void prefixAndSuffix() {
+        UserTemplateMatcher m = new UserTemplateMatcher("mail-%EMAIL%-bridge");
+        assertEquals(Optional.of("john"), m.match("mail-john-bridge"));
+        assertFalse(m.match("mail-bridge").isPresent());
+        assertFalse(m.match("mail-john").isPresent());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noToken() {
+        new UserTemplateMatcher("email");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void twoTokens() {
+        new UserTemplateMatcher("%EMAIL%_%EMAIL%");
+    }
+
+}